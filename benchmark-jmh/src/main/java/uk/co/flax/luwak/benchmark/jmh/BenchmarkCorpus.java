@@ -0,0 +1,132 @@
+package uk.co.flax.luwak.benchmark.jmh;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import com.google.common.io.Resources;
+import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.InputDocument;
+import uk.co.flax.luwak.MonitorQuery;
+
+import static uk.co.flax.luwak.benchmark.StandardBenchmark.ANALYZER;
+import static uk.co.flax.luwak.benchmark.StandardBenchmark.FIELD;
+
+/**
+ * Builds query sets and document batches of arbitrary size from the resources
+ * bundled with luwak-benchmark.
+ *
+ * The bundled query file only holds a couple of thousand queries, so larger query
+ * sets are synthesized from its vocabulary, keeping the same mix of plain and
+ * prefix conjunctions.  Generation is seeded, so every fork sees the same queries.
+ */
+public class BenchmarkCorpus {
+
+    private static final long SEED = 1234567890L;
+
+    private final List<String> templates;
+    private final List<String> vocabulary;
+    private final double prefixRatio;
+    private final List<String> docTexts = new ArrayList<>();
+
+    private int docUpto = 0;
+    private int docCopy = 0;
+
+    public BenchmarkCorpus() throws IOException {
+        this.templates = Resources.readLines(Resources.getResource("queries"), StandardCharsets.UTF_8);
+        Set<String> terms = new TreeSet<>();
+        int prefixQueries = 0;
+        for (String query : templates) {
+            if (query.contains("*"))
+                prefixQueries++;
+            for (String clause : query.split("\\s+")) {
+                String term = clause.replace("+", "").replace("*", "");
+                if (term.length() > 0)
+                    terms.add(term);
+            }
+        }
+        this.vocabulary = new ArrayList<>(terms);
+        this.prefixRatio = (double) prefixQueries / templates.size();
+
+        for (String docfile : Resources.readLines(Resources.getResource("doclist"), StandardCharsets.UTF_8)) {
+            docTexts.add(Resources.toString(Resources.getResource("docfiles/" + docfile), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Generate a set of queries
+     * @param count the number of queries to generate
+     * @return a list of MonitorQuery objects, with ids 0..count-1
+     */
+    public List<MonitorQuery> queries(int count) {
+        Random random = new Random(SEED);
+        List<MonitorQuery> queries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String query = i < templates.size() ? templates.get(i) : generateQuery(random);
+            queries.add(new MonitorQuery(Integer.toString(i), query));
+        }
+        return queries;
+    }
+
+    private String generateQuery(Random random) {
+        boolean prefix = random.nextDouble() < prefixRatio;
+        int clauses = prefix ? 3 : 2;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < clauses; i++) {
+            String term = vocabulary.get(random.nextInt(vocabulary.size()));
+            if (prefix && term.length() > 5)
+                term = term.substring(0, 5) + "*";
+            if (i > 0)
+                sb.append(" ");
+            sb.append("+").append(term);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the number of distinct documents in the corpus
+     */
+    public int documentCount() {
+        return docTexts.size();
+    }
+
+    /**
+     * Build the next batch of documents, cycling through the corpus.
+     *
+     * Documents are given unique ids even when the corpus wraps around, so batches
+     * larger than the corpus are still valid.
+     *
+     * @param batchSize the number of documents in the batch
+     * @return a new DocumentBatch
+     */
+    public DocumentBatch nextBatch(int batchSize) {
+        List<InputDocument> docs = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            String id = docUpto + "_" + docCopy;
+            docs.add(InputDocument.builder(id).addField(FIELD, docTexts.get(docUpto), ANALYZER).build());
+            docUpto++;
+            if (docUpto == docTexts.size()) {
+                docUpto = 0;
+                docCopy++;
+            }
+        }
+        return DocumentBatch.of(docs);
+    }
+
+}
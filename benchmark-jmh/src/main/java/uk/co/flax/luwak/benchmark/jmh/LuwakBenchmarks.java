@@ -0,0 +1,124 @@
+package uk.co.flax.luwak.benchmark.jmh;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point for the luwak JMH benchmarks.
+ *
+ * Accepts the standard JMH command line (so {@code -p batchSize=1,100} or a benchmark
+ * regex can be used to restrict the run), always attaches the GC profiler, and prints
+ * a summary of scores, p99 latency and bytes allocated per document for each
+ * parameter combination once the run is complete.
+ *
+ * <pre>
+ *     mvn package -pl benchmark-jmh -am
+ *     java -jar benchmark-jmh/target/benchmarks.jar -p queryCount=10000
+ * </pre>
+ */
+public class LuwakBenchmarks {
+
+    private static final String ALLOCATION = "\u00b7gc.alloc.rate.norm";
+
+    public static void main(String... args) throws RunnerException, CommandLineOptionException {
+
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        Collection<RunResult> results = new Runner(options).run();
+
+        System.out.println();
+        System.out.println(String.format("%-40s %-60s %14s %-8s %12s %16s",
+                "Benchmark", "Params", "Score", "Units", "p99 (ms)", "bytes/doc"));
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            // sampled results are reported alongside their throughput equivalents
+            if (params.getMode() == Mode.SampleTime && findResult(results, params, Mode.Throughput) != null)
+                continue;
+            RunResult sampled = params.getMode() == Mode.SampleTime
+                    ? result : findResult(results, params, Mode.SampleTime);
+            System.out.println(String.format("%-40s %-60s %14.3f %-8s %12.3f %16.0f",
+                    shortName(params.getBenchmark()), describe(params),
+                    result.getPrimaryResult().getScore(),
+                    result.getPrimaryResult().getScoreUnit(),
+                    p99Millis(sampled),
+                    bytesPerDocument(result, params)));
+        }
+    }
+
+    private static RunResult findResult(Collection<RunResult> results, BenchmarkParams params, Mode mode) {
+        for (RunResult candidate : results) {
+            BenchmarkParams p = candidate.getParams();
+            if (p.getMode() == mode
+                    && p.getBenchmark().equals(params.getBenchmark())
+                    && describe(p).equals(describe(params)))
+                return candidate;
+        }
+        return null;
+    }
+
+    private static double p99Millis(RunResult sampled) {
+        if (sampled == null)
+            return Double.NaN;
+        double p99 = sampled.getPrimaryResult().getStatistics().getPercentile(99);
+        TimeUnit unit = sampled.getParams().getTimeUnit();
+        return p99 * unit.toNanos(1) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static double bytesPerDocument(RunResult result, BenchmarkParams params) {
+        Map<String, Result> secondary = result.getSecondaryResults();
+        Result allocation = secondary.get(ALLOCATION);
+        if (allocation == null)
+            return Double.NaN;
+        String batchSize = params.getParam("batchSize");
+        int docs = batchSize == null ? 1 : Integer.parseInt(batchSize);
+        return allocation.getScore() / docs;
+    }
+
+    private static String describe(BenchmarkParams params) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : params.getParamsKeys()) {
+            if (sb.length() > 0)
+                sb.append(",");
+            sb.append(key).append("=").append(params.getParam(key));
+        }
+        return sb.toString();
+    }
+
+    private static String shortName(String benchmark) {
+        int dot = benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1);
+        return benchmark.substring(dot + 1);
+    }
+
+}
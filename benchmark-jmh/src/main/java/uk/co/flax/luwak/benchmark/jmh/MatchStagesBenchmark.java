@@ -0,0 +1,222 @@
+package uk.co.flax.luwak.benchmark.jmh;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.RAMDirectory;
+import org.openjdk.jmh.annotations.*;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.benchmark.StandardBenchmark;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
+
+/**
+ * Micro-benchmarks for the individual stages of a match run, each against a fixed,
+ * pre-indexed DocumentBatch:
+ * <ul>
+ *     <li>{@code buildQuery} - {@link Presearcher#buildQuery} over the batch</li>
+ *     <li>{@code queryIndexSearch} - searching the query index with a pre-built presearcher
+ *          query, and collecting candidates without running them</li>
+ *     <li>{@code matchCandidates} - running the candidates selected by the presearcher
+ *          through a {@link CandidateMatcher}</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MatchStagesBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class StageState {
+
+        @Param({"termfiltered", "multipass", "wildcard", "multipass-wildcard"})
+        public String presearcher;
+
+        @Param({"10000", "100000"})
+        public int queryCount;
+
+        @Param({"1", "10", "100"})
+        public int batchSize;
+
+        Presearcher delegate;
+        FixedQueryPresearcher fixedPresearcher;
+        Monitor monitor;
+        DocumentBatch batch;
+        QueryTermFilter termFilter;
+        final List<Candidate> candidates = new ArrayList<>();
+
+        private RAMDirectory termFilterDirectory;
+        private DirectoryReader termFilterReader;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            BenchmarkCorpus corpus = new BenchmarkCorpus();
+            List<MonitorQuery> queries = corpus.queries(queryCount);
+
+            delegate = MonitorMatchBenchmark.presearcher(presearcher);
+            fixedPresearcher = new FixedQueryPresearcher(delegate);
+            batch = corpus.nextBatch(batchSize);
+
+            monitor = new Monitor(new LuceneQueryParser(StandardBenchmark.FIELD), fixedPresearcher);
+            monitor.update(queries);
+
+            // The Monitor's own QueryTermFilter is internal, so build an equivalent one over
+            // a standalone index of the same presearcher documents
+            termFilterDirectory = new RAMDirectory();
+            LuceneQueryParser parser = new LuceneQueryParser(StandardBenchmark.FIELD);
+            QueryDecomposer decomposer = new QueryDecomposer();
+            try (IndexWriter writer = new IndexWriter(termFilterDirectory, new IndexWriterConfig(new KeywordAnalyzer()))) {
+                for (MonitorQuery mq : queries) {
+                    for (Query q : decomposer.decompose(parser.parse(mq.getQuery(), mq.getMetadata()))) {
+                        Document doc = delegate.indexQuery(q, mq.getMetadata());
+                        writer.addDocument(doc);
+                    }
+                }
+            }
+            termFilterReader = DirectoryReader.open(termFilterDirectory);
+            termFilter = new QueryTermFilter(termFilterReader);
+
+            // Record the presearcher query and the candidates it selects
+            fixedPresearcher.fixedQuery = delegate.buildQuery(batch.getIndexReader(), termFilter);
+            monitor.match(batch, docs -> new CandidateMatcher<QueryMatch>(docs) {
+                @Override
+                protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) {
+                    // CandidateMatcher will re-wrap the query when the candidate is replayed
+                    Query query = ((ForceNoBulkScoringQuery) matchQuery).getWrappedQuery();
+                    candidates.add(new Candidate(queryId, query, metadata));
+                }
+
+                @Override
+                public QueryMatch resolve(QueryMatch match1, QueryMatch match2) {
+                    return match1;
+                }
+            });
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            monitor.close();
+            batch.close();
+            termFilterReader.close();
+            termFilterDirectory.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MatcherState {
+
+        @Param({"simple", "scoring", "highlighting"})
+        public String matcher;
+
+        MatcherFactory<? extends QueryMatch> matcherFactory;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            matcherFactory = MonitorMatchBenchmark.matcherFactory(matcher);
+        }
+    }
+
+    static class Candidate {
+
+        final String queryId;
+        final Query matchQuery;
+        final Map<String, String> metadata;
+
+        Candidate(String queryId, Query matchQuery, Map<String, String> metadata) {
+            this.queryId = queryId;
+            this.matchQuery = matchQuery;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * Presearcher that indexes queries using a delegate, but always returns a fixed
+     * query at match time, so that query index search can be timed on its own.
+     */
+    static class FixedQueryPresearcher extends Presearcher {
+
+        final Presearcher delegate;
+        Query fixedQuery;
+
+        FixedQueryPresearcher(Presearcher delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter) {
+            if (fixedQuery != null)
+                return fixedQuery;
+            return delegate.buildQuery(reader, queryTermFilter);
+        }
+
+        @Override
+        public Document indexQuery(Query query, Map<String, String> metadata) {
+            return delegate.indexQuery(query, metadata);
+        }
+    }
+
+    /** A matcher that discards every candidate */
+    private static final MatcherFactory<QueryMatch> DISCARDING = docs -> new CandidateMatcher<QueryMatch>(docs) {
+        @Override
+        protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) {
+
+        }
+
+        @Override
+        public QueryMatch resolve(QueryMatch match1, QueryMatch match2) {
+            return match1;
+        }
+    };
+
+    @Benchmark
+    public Query buildQuery(StageState state) throws IOException {
+        return state.delegate.buildQuery(state.batch.getIndexReader(), state.termFilter);
+    }
+
+    @Benchmark
+    public Matches<QueryMatch> queryIndexSearch(StageState state) throws IOException {
+        return state.monitor.match(state.batch, DISCARDING);
+    }
+
+    @Benchmark
+    public Matches<? extends QueryMatch> matchCandidates(StageState state, MatcherState matcher) throws IOException {
+        return matchCandidates(matcher.matcherFactory.createMatcher(state.batch), state.candidates);
+    }
+
+    private static <T extends QueryMatch> Matches<T> matchCandidates(CandidateMatcher<T> matcher,
+                                                                     List<Candidate> candidates) throws IOException {
+        for (Candidate candidate : candidates) {
+            matcher.matchQuery(candidate.queryId, candidate.matchQuery, candidate.metadata);
+        }
+        return matcher.getMatches();
+    }
+
+}
@@ -0,0 +1,111 @@
+package uk.co.flax.luwak.benchmark.jmh;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.benchmark.StandardBenchmark;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Benchmarks the full {@link Monitor#match(DocumentBatch, MatcherFactory)} pipeline: batch
+ * indexing, presearcher query construction, query index search and candidate matching.
+ *
+ * Each operation matches a single DocumentBatch of {@code batchSize} documents, so
+ * ops/s is batches per second.  Use {@link LuwakBenchmarks} to also get p99 latency and
+ * allocation per document.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MonitorMatchBenchmark {
+
+    /** Names for the entries in {@link StandardBenchmark#PRESEARCHERS}, in order */
+    public static final List<String> PRESEARCHERS
+            = Arrays.asList("termfiltered", "multipass", "wildcard", "multipass-wildcard");
+
+    /** Names for the entries in {@link StandardBenchmark#MATCHERS}, in order */
+    public static final List<String> MATCHERS
+            = Arrays.asList("presearcher", "simple", "scoring", "highlighting");
+
+    @State(Scope.Benchmark)
+    public static class MonitorState {
+
+        @Param({"termfiltered", "multipass", "wildcard", "multipass-wildcard"})
+        public String presearcher;
+
+        @Param({"presearcher", "simple", "scoring", "highlighting"})
+        public String matcher;
+
+        @Param({"10000", "100000", "1000000"})
+        public int queryCount;
+
+        @Param({"1", "10", "100", "1000"})
+        public int batchSize;
+
+        Monitor monitor;
+        MatcherFactory<? extends QueryMatch> matcherFactory;
+        BenchmarkCorpus corpus;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            corpus = new BenchmarkCorpus();
+            monitor = new Monitor(new LuceneQueryParser(StandardBenchmark.FIELD), presearcher(presearcher));
+            matcherFactory = matcherFactory(matcher);
+            try {
+                monitor.update(corpus.queries(queryCount));
+            }
+            catch (UpdateException e) {
+                throw new IllegalStateException(e.errors.size() + " queries could not be parsed", e);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            monitor.close();
+        }
+    }
+
+    static Presearcher presearcher(String name) {
+        int index = PRESEARCHERS.indexOf(name);
+        if (index == -1)
+            throw new IllegalArgumentException("Unknown presearcher " + name);
+        return StandardBenchmark.PRESEARCHERS.get(index);
+    }
+
+    static MatcherFactory<? extends QueryMatch> matcherFactory(String name) {
+        int index = MATCHERS.indexOf(name);
+        if (index == -1)
+            throw new IllegalArgumentException("Unknown matcher " + name);
+        return StandardBenchmark.MATCHERS.get(index);
+    }
+
+    @Benchmark
+    public Matches<? extends QueryMatch> match(MonitorState state) throws IOException {
+        try (DocumentBatch batch = state.corpus.nextBatch(state.batchSize)) {
+            return state.monitor.match(batch, state.matcherFactory);
+        }
+    }
+
+}
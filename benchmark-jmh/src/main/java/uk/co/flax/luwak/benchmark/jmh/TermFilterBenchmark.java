@@ -0,0 +1,111 @@
+package uk.co.flax.luwak.benchmark.jmh;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.RAMDirectory;
+import org.openjdk.jmh.annotations.*;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.benchmark.StandardBenchmark;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Compares the {@link QueryTermFilter.Format}s by timing {@link Presearcher#buildQuery}
+ * over a fixed DocumentBatch, against a query index of several segments.
+ *
+ * The heap used by each format's terms is printed when the trial is set up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class TermFilterBenchmark {
+
+    private static final int SEGMENT_SIZE = 20000;
+
+    @State(Scope.Benchmark)
+    public static class TermFilterState {
+
+        @Param({"HASH", "SORTED_ARRAY", "FST", "TERMS_ENUM"})
+        public QueryTermFilter.Format format;
+
+        @Param({"termfiltered", "multipass"})
+        public String presearcher;
+
+        @Param({"10000", "100000"})
+        public int queryCount;
+
+        @Param({"1", "10", "100"})
+        public int batchSize;
+
+        Presearcher delegate;
+        DocumentBatch batch;
+        QueryTermFilter termFilter;
+
+        private RAMDirectory directory;
+        private DirectoryReader reader;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            BenchmarkCorpus corpus = new BenchmarkCorpus();
+            List<MonitorQuery> queries = corpus.queries(queryCount);
+
+            delegate = MonitorMatchBenchmark.presearcher(presearcher);
+            batch = corpus.nextBatch(batchSize);
+
+            directory = new RAMDirectory();
+            LuceneQueryParser parser = new LuceneQueryParser(StandardBenchmark.FIELD);
+            QueryDecomposer decomposer = new QueryDecomposer();
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()))) {
+                int docs = 0;
+                for (MonitorQuery mq : queries) {
+                    for (Query q : decomposer.decompose(parser.parse(mq.getQuery(), mq.getMetadata()))) {
+                        writer.addDocument(delegate.indexQuery(q, mq.getMetadata()));
+                        if (++docs % SEGMENT_SIZE == 0)
+                            writer.commit();
+                    }
+                }
+            }
+            reader = DirectoryReader.open(directory);
+            termFilter = new QueryTermFilter(reader, format);
+            System.out.println(String.format("%n%s: %d segments, %d bytes of terms",
+                    format, reader.leaves().size(), termFilter.ramBytesUsed()));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            batch.close();
+            reader.close();
+            directory.close();
+        }
+    }
+
+    @Benchmark
+    public Query buildQuery(TermFilterState state) throws IOException {
+        return state.delegate.buildQuery(state.batch.getIndexReader(), state.termFilter);
+    }
+
+}
@@ -33,10 +33,14 @@ public class BenchmarkResults<T extends QueryMatch> {
     private final MetricRegistry metrics = new MetricRegistry();
     private final Timer timer = metrics.timer("searchTimes");
     private final Histogram queryBuildTimes = metrics.histogram("queryBuildTimes");
+    private final Histogram queryIndexSearchTimes = metrics.histogram("queryIndexSearchTimes");
+    private final Histogram candidateMatchTimes = metrics.histogram("candidateMatchTimes");
 
     public void add(Matches<T> benchmarkMatches) {
         timer.update(benchmarkMatches.getSearchTime(), TimeUnit.MILLISECONDS);
         queryBuildTimes.update(benchmarkMatches.getQueryBuildTime());
+        queryIndexSearchTimes.update(benchmarkMatches.getQueryIndexSearchTime());
+        candidateMatchTimes.update(benchmarkMatches.getCandidateMatchTime());
     }
 
     public Timer getTimer() {
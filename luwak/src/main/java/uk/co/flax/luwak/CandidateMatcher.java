@@ -2,10 +2,17 @@ package uk.co.flax.luwak;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.lucene.index.ExitableDirectoryReader;
 import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.QueryTimeout;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TimeLimitingCollector;
 import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
 
 /*
@@ -30,18 +37,60 @@ import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
  */
 public abstract class CandidateMatcher<T extends QueryMatch> {
 
-    private final Set<String> presearcherHits = new HashSet<>();
+    /**
+     * A {@link MonitorQuery} metadata key giving the query's time budget in milliseconds,
+     * overriding the matcher's default budget
+     *
+     * @see #setMatchTimeout(long)
+     */
+    public static final String MATCH_TIMEOUT_METADATA = "luwak.matchTimeoutMs";
+
+    private final Set<String> presearcherHits = ConcurrentHashMap.newKeySet();
     protected final DocumentBatch docs;
 
-    private final List<MatchError> errors = new LinkedList<>();
+    private final List<MatchError> errors = Collections.synchronizedList(new LinkedList<>());
     private final Map<String, MatchHolder<T>> matches = new HashMap<>();
 
     private long queryBuildTime = -1;
     private long searchTime = System.nanoTime();
+    private long queryIndexSearchTime = -1;
+    private final AtomicLong candidateMatchTime = new AtomicLong();
     private int queriesRun = -1;
 
     protected final SlowLog slowlog = new SlowLog();
 
+    private MatchHandler<T> matchHandler = null;
+    private MatchQuota matchQuota = null;
+
+    private long matchTimeout = 0;
+    private int quarantineThreshold = 0;
+
+    // the time budget of the candidate currently being run, re-armed for each candidate
+    private final CandidateTimeout candidateTimeout = new CandidateTimeout();
+
+    // a searcher that checks the candidate timeout, built once for the matcher on first use
+    private IndexSearcher exitableSearcher = null;
+
+    private static final class CandidateTimeout implements QueryTimeout {
+
+        boolean armed = false;
+        long deadline;
+
+        void arm(long deadline) {
+            this.deadline = deadline;
+            this.armed = true;
+        }
+
+        void disarm() {
+            this.armed = false;
+        }
+
+        @Override
+        public boolean shouldExit() {
+            return armed && System.nanoTime() - deadline > 0;
+        }
+    }
+
     private static class MatchHolder<T> {
         Map<String, T> matches = new HashMap<>();
     }
@@ -65,7 +114,136 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
      */
     public final void matchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
         presearcherHits.add(queryId);
-        doMatchQuery(queryId, new ForceNoBulkScoringQuery(matchQuery), metadata);
+        if (isFilled())
+            return;
+        long t = System.nanoTime();
+        try {
+            doMatchQuery(queryId, new ForceNoBulkScoringQuery(matchQuery), metadata);
+        }
+        finally {
+            candidateMatchTime.addAndGet(System.nanoTime() - t);
+        }
+    }
+
+    /**
+     * Whether {@link #matchQuery(String, Query, Map)} may be called from several threads at once
+     *
+     * If the Monitor's queryindex is searched one segment per thread (see
+     * {@link QueryIndexConfiguration#setSearchExecutor(java.util.concurrent.ExecutorService)}), then
+     * candidates are passed to matchers that return true here directly from each segment's thread.
+     * Candidates are passed to other matchers one at a time.  Defaults to false.
+     *
+     * @return true if this matcher's {@link #doMatchQuery(String, Query, Map)} is thread-safe
+     */
+    public boolean acceptsConcurrentCandidates() {
+        return false;
+    }
+
+    /**
+     * Runs the query from a query cache entry against this CandidateMatcher's DocumentBatch,
+     * storing any resulting match, recording the query in the presearcher hits, and updating
+     * the entry's cost estimate
+     *
+     * @param queryId the query id
+     * @param entry the query cache entry to run
+     * @throws IOException on IO errors
+     */
+    public final void matchQuery(String queryId, QueryCacheEntry entry) throws IOException {
+        presearcherHits.add(queryId);
+        if (isFilled())
+            return;
+        if (quarantineThreshold > 0 && entry.getTimeouts() >= quarantineThreshold) {
+            reportError(new MatchError(queryId, new MatchTimeoutException("Query " + queryId
+                    + " is quarantined after exceeding its time budget " + entry.getTimeouts() + " times")));
+            return;
+        }
+        long t = System.nanoTime();
+        try {
+            doMatchQuery(queryId, entry);
+        }
+        finally {
+            candidateMatchTime.addAndGet(System.nanoTime() - t);
+        }
+    }
+
+    /**
+     * Run the query from a query cache entry, and record its cost on the entry
+     *
+     * Multithreaded matchers may override this to pass the entry, with its cost estimate,
+     * to a worker matcher's {@link #matchQuery(String, QueryCacheEntry)}
+     *
+     * @param queryId       the query id
+     * @param entry         the query cache entry
+     * @throws IOException  on error
+     */
+    protected void doMatchQuery(String queryId, QueryCacheEntry entry) throws IOException {
+        long budget = candidateBudget(entry.metadata);
+        long t = System.nanoTime();
+        if (budget > 0)
+            candidateTimeout.arm(t + budget);
+        try {
+            doMatchQuery(queryId, entry.getPreparedQuery(), entry.metadata);
+        }
+        catch (ExitableDirectoryReader.ExitingReaderException | TimeLimitingCollector.TimeExceededException e) {
+            entry.recordTimeout();
+            throw new MatchTimeoutException("Query " + queryId + " exceeded its time budget of "
+                    + TimeUnit.NANOSECONDS.toMillis(budget) + "ms", e);
+        }
+        finally {
+            candidateTimeout.disarm();
+            entry.recordCost(System.nanoTime() - t);
+        }
+    }
+
+    // the time budget for a candidate in ns, or 0 if it has none
+    private long candidateBudget(Map<String, String> metadata) {
+        String budget = metadata == null ? null : metadata.get(MATCH_TIMEOUT_METADATA);
+        if (budget != null) {
+            try {
+                return TimeUnit.MILLISECONDS.toNanos(Long.parseLong(budget));
+            }
+            catch (NumberFormatException e) {
+                // fall back to the default budget
+            }
+        }
+        return matchTimeout;
+    }
+
+    /**
+     * Get an {@link IndexSearcher} over this matcher's DocumentBatch
+     *
+     * If the candidate being run has a time budget, the searcher stops enumerating terms
+     * once the budget has been used up.  Matchers that search the batch should use this
+     * searcher rather than calling {@link DocumentBatch#getSearcher()} directly.  The searcher
+     * used for budgeted candidates is built once per matcher, and checks the budget of
+     * whichever candidate is being run.
+     *
+     * @return an {@link IndexSearcher} over the documents in this matcher's batch
+     * @throws IOException on IO errors
+     */
+    protected IndexSearcher getSearcher() throws IOException {
+        if (candidateTimeout.armed == false)
+            return docs.getSearcher();
+        if (exitableSearcher == null)
+            exitableSearcher = docs.getSearcher(candidateTimeout);
+        return exitableSearcher;
+    }
+
+    /**
+     * Wrap a Collector so that it stops collecting once the time budget of the candidate
+     * being run has been used up
+     *
+     * @param collector the Collector to wrap
+     * @return a time-limited Collector, or the passed in Collector if the candidate has no budget
+     */
+    protected Collector limitTime(Collector collector) {
+        if (candidateTimeout.armed == false)
+            return collector;
+        long remaining = TimeUnit.NANOSECONDS.toMillis(candidateTimeout.deadline - System.nanoTime());
+        TimeLimitingCollector limited = new TimeLimitingCollector(collector,
+                TimeLimitingCollector.getGlobalCounter(), Math.max(1, remaining));
+        limited.setBaseline();
+        return limited;
     }
 
     /**
@@ -90,10 +268,104 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
 
     /**
      * Record a match
+     *
+     * If a {@link MatchHandler} has been set, the match is passed straight to it
+     * rather than being stored.  If a {@link MatchQuota} has been set, matches beyond
+     * the document's quota are discarded.
+     *
      * @param match     a QueryMatch object
      */
     protected void addMatch(T match) {
-        addMatch(match.getQueryId(), match.getDocId(), match);
+        if (matchQuota != null && matchQuota.accept(match.getDocId(), match.getQueryId()) == false)
+            return;
+        if (matchHandler != null)
+            matchHandler.onMatch(match);
+        else
+            addMatch(match.getQueryId(), match.getDocId(), match);
+    }
+
+    /**
+     * Stream matches to a {@link MatchHandler} as they are found, instead of collecting
+     * them for {@link #getMatches()}
+     *
+     * Called by the Monitor for streaming match runs
+     *
+     * @param handler the MatchHandler
+     */
+    public void setMatchHandler(MatchHandler<T> handler) {
+        this.matchHandler = handler;
+    }
+
+    /**
+     * @return the {@link MatchHandler} that matches are streamed to, or null if matches are collected
+     */
+    protected MatchHandler<T> getMatchHandler() {
+        return matchHandler;
+    }
+
+    /**
+     * Limit the number of matches recorded for each document
+     *
+     * Called by the Monitor for match runs with a per-document quota
+     *
+     * @param quota the MatchQuota
+     */
+    public void setMatchQuota(MatchQuota quota) {
+        this.matchQuota = quota;
+    }
+
+    /**
+     * @return the {@link MatchQuota} for this matcher, or null if matches are unlimited
+     */
+    protected MatchQuota getMatchQuota() {
+        return matchQuota;
+    }
+
+    /**
+     * Set a default time budget for each candidate query
+     *
+     * A candidate that exceeds its budget is stopped, and reported as a {@link MatchError}
+     * with a {@link MatchTimeoutException}.  Budgets are only enforced while matchers are
+     * enumerating terms through {@link #getSearcher()}, or collecting matches through a
+     * Collector wrapped with {@link #limitTime(Collector)}.  Individual queries can set
+     * their own budget with the {@link #MATCH_TIMEOUT_METADATA} metadata key.
+     *
+     * Called by the Monitor before the match run
+     *
+     * @param timeout the budget in ns, or 0 for no limit
+     */
+    public void setMatchTimeout(long timeout) {
+        this.matchTimeout = timeout;
+    }
+
+    /**
+     * @return the default time budget for each candidate query in ns, or 0 if there is no limit
+     */
+    protected long getMatchTimeout() {
+        return matchTimeout;
+    }
+
+    /**
+     * Skip candidate queries that have exceeded their time budget a number of times
+     *
+     * Skipped candidates are reported as a {@link MatchError} with a {@link MatchTimeoutException}.
+     * Timeouts are recorded against the query's {@link QueryCacheEntry}, so a quarantine lasts
+     * until the query is updated.
+     *
+     * Called by the Monitor before the match run
+     *
+     * @param timeouts the number of timeouts after which a query is skipped, or 0 to never skip queries
+     */
+    public void setQuarantineThreshold(int timeouts) {
+        this.quarantineThreshold = timeouts;
+    }
+
+    /**
+     * @return true if every document in the batch has reached its match quota, and
+     *         no further candidates need to be run
+     */
+    public boolean isFilled() {
+        return matchQuota != null && matchQuota.isFilled();
     }
 
     /**
@@ -124,6 +396,28 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
         this.searchTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - searchTime, TimeUnit.NANOSECONDS);
     }
 
+    /**
+     * Record time spent matching candidates outside of {@link #matchQuery(String, Query, Map)}
+     *
+     * Multithreaded matchers should call this with the time taken by their worker
+     * matchers, so that it is reported in {@link Matches#getCandidateMatchTime()}
+     *
+     * @param time the time in ns
+     */
+    protected void addCandidateMatchTime(long time) {
+        this.candidateMatchTime.addAndGet(time);
+    }
+
+    // package-private, called by the Monitor before finish()
+    long getCandidateMatchTime() {
+        return candidateMatchTime.get();
+    }
+
+    // package-private, called by the Monitor before finish()
+    void setQueryIndexSearchTime(long time) {
+        this.queryIndexSearchTime = time;
+    }
+
     /*
      * Called by the Monitor to set the {@link SlowLog} limit
      */
@@ -156,7 +450,8 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
             else
                 results.put(id, DocumentMatches.noMatches(id));
         }
-        return new Matches<>(results, presearcherHits, errors, queryBuildTime, searchTime, queriesRun, docs.getBatchSize(), slowlog);
+        return new Matches<>(results, presearcherHits, errors, queryBuildTime, searchTime,
+                queryIndexSearchTime, candidateMatchTime.get(), queriesRun, docs.getBatchSize(), slowlog);
     }
 
     /**
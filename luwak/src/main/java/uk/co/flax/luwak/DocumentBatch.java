@@ -53,6 +53,9 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
     /** A list of {@link InputDocument} objects to match */
     protected final List<InputDocument> documents = new ArrayList<>();
 
+    /** The time taken (in ns) to index the documents, set by implementations */
+    protected long indexTime = -1;
+
     /**
      * Create a DocumentBatch containing a single InputDocument
      * @param doc the document to add
@@ -161,6 +164,21 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
         return searcher;
     }
 
+    /**
+     * Get an {@link IndexSearcher} over the documents in this batch that stops enumerating terms
+     * once a timeout has expired, throwing an {@link ExitableDirectoryReader.ExitingReaderException}
+     *
+     * @param timeout the QueryTimeout to check
+     * @return an {@link IndexSearcher} over the documents in this batch
+     * @throws IOException on error
+     */
+    public IndexSearcher getSearcher(QueryTimeout timeout) throws IOException {
+        LeafReader reader = new ExitableDirectoryReader.ExitableFilterAtomicReader(getIndexReader(), timeout);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(similarity);
+        return searcher;
+    }
+
     @Override
     public Iterator<InputDocument> iterator() {
         return documents.iterator();
@@ -173,6 +191,13 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
         return documents.size();
     }
 
+    /**
+     * @return the time taken (in ns) to index the documents in this batch, or -1 if not recorded
+     */
+    public long getIndexTime() {
+        return indexTime;
+    }
+
     // Implementation of DocumentBatch for collections of documents
     private static class MultiDocumentBatch extends DocumentBatch {
 
@@ -183,6 +208,7 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
         MultiDocumentBatch(List<InputDocument> docs, Similarity similarity) {
             super(docs, similarity);
             assert docs.size() > 1;
+            long t = System.nanoTime();
             IndexWriterConfig iwc = new IndexWriterConfig(docs.get(0).getAnalyzers()).setSimilarity(similarity);
             try (IndexWriter writer = new IndexWriter(directory, iwc)) {
                 this.reader = build(writer);
@@ -190,6 +216,7 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
             catch (IOException e) {
                 throw new RuntimeException(e);  // This is a RAMDirectory, so should never happen...
             }
+            this.indexTime = System.nanoTime() - t;
         }
 
         @Override
@@ -239,6 +266,7 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
         private SingletonDocumentBatch(Collection<InputDocument> documents, Similarity similarity) {
             super(documents, similarity);
             assert documents.size() == 1;
+            long t = System.nanoTime();
             memoryindex.setSimilarity(similarity);
             for (InputDocument doc : documents) {
                 for (IndexableField field : doc.getDocument()) {
@@ -247,6 +275,7 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
             }
             memoryindex.freeze();
             reader = (LeafReader) memoryindex.createSearcher().getIndexReader();
+            this.indexTime = System.nanoTime() - t;
         }
 
         @Override
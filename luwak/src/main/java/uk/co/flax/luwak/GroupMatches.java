@@ -0,0 +1,134 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Holds the results of matching a {@link DocumentBatch} against a {@link MonitorGroup}
+ *
+ * Timings summed across Monitors are reported in ns, and may be greater than the elapsed
+ * time of the match run, as Monitors are matched in parallel.
+ *
+ * @param <T> the type of QueryMatch returned
+ */
+public class GroupMatches<T extends QueryMatch> {
+
+    private final Map<String, Matches<T>> matches;
+    private final Map<String, Throwable> failures;
+
+    private final long batchIndexTime;
+    private final long elapsedTime;
+    private final long queryBuildTime;
+    private final long queryIndexSearchTime;
+    private final long candidateMatchTime;
+    private final int queriesRun;
+    private final int batchSize;
+
+    GroupMatches(Map<String, Matches<T>> matches, Map<String, Throwable> failures, DocumentBatch batch, long elapsedTime) {
+        this.matches = Collections.unmodifiableMap(matches);
+        this.failures = Collections.unmodifiableMap(failures);
+        this.batchIndexTime = batch.getIndexTime();
+        this.batchSize = batch.getBatchSize();
+        this.elapsedTime = elapsedTime;
+        long queryBuildTime = 0, queryIndexSearchTime = 0, candidateMatchTime = 0;
+        int queriesRun = 0;
+        for (Matches<T> m : matches.values()) {
+            queryBuildTime += m.getQueryBuildTime();
+            queryIndexSearchTime += Math.max(m.getQueryIndexSearchTime(), 0);
+            candidateMatchTime += m.getCandidateMatchTime();
+            queriesRun += m.getQueriesRun();
+        }
+        this.queryBuildTime = queryBuildTime;
+        this.queryIndexSearchTime = queryIndexSearchTime;
+        this.candidateMatchTime = candidateMatchTime;
+        this.queriesRun = queriesRun;
+    }
+
+    /**
+     * @return each Monitor's matches, keyed by Monitor id
+     */
+    public Map<String, Matches<T>> getMatches() {
+        return matches;
+    }
+
+    /**
+     * @param monitorId the id of a Monitor in the group
+     * @return the Monitor's matches, or null if the Monitor was not in the group or matching failed
+     */
+    public Matches<T> getMatches(String monitorId) {
+        return matches.get(monitorId);
+    }
+
+    /**
+     * @return any exceptions thrown while matching against a Monitor, keyed by Monitor id
+     */
+    public Map<String, Throwable> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return how long (in ns) it took to index the batch, which is shared by all Monitors
+     */
+    public long getBatchIndexTime() {
+        return batchIndexTime;
+    }
+
+    /**
+     * @return how long (in ns) it took to match the batch against all Monitors
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * @return the total time (in ns) taken to build presearcher queries, across all Monitors
+     */
+    public long getQueryBuildTime() {
+        return queryBuildTime;
+    }
+
+    /**
+     * @return the total time (in ns) spent searching query indexes, across all Monitors
+     */
+    public long getQueryIndexSearchTime() {
+        return queryIndexSearchTime;
+    }
+
+    /**
+     * @return the total time (in ns) spent running candidate queries, across all Monitors
+     */
+    public long getCandidateMatchTime() {
+        return candidateMatchTime;
+    }
+
+    /**
+     * @return the total number of queries run, across all Monitors
+     */
+    public int getQueriesRun() {
+        return queriesRun;
+    }
+
+    /**
+     * @return the number of documents in the batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+}
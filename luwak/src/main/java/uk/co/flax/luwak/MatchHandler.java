@@ -0,0 +1,39 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * Receives matches from a streaming match run as soon as they are found
+ *
+ * Matches are passed to the handler on the thread that produced them, and the
+ * match run does not continue until the handler returns, so a handler that
+ * blocks (for example, on a bounded queue) applies backpressure to the Monitor.
+ * Multithreaded matchers call the handler concurrently, so it must be thread-safe.
+ *
+ * @param <T> the type of QueryMatch handled
+ *
+ * @see Monitor#match(DocumentBatch, MatcherFactory, MatchHandler)
+ */
+public interface MatchHandler<T extends QueryMatch> {
+
+    /**
+     * Called for each match
+     * @param match the match
+     */
+    void onMatch(T match);
+
+}
@@ -0,0 +1,76 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * Base class for reporting timings and counts from each stage of a Monitor's match runs
+ *
+ * Listeners are called on the matching thread once the run has completed, so
+ * implementations should be thread-safe and cheap.  All times are in nanoseconds.
+ *
+ * @see Monitor#addMatchListener(MatchListener)
+ */
+public abstract class MatchListener {
+
+    /**
+     * Called with the time taken to index the documents in a {@link DocumentBatch}
+     * @param batchSize the number of documents in the batch
+     * @param time the indexing time, or -1 if the batch did not record it
+     */
+    public void onBatchIndexed(int batchSize, long time) {}
+
+    /**
+     * Called with the time taken by the {@link Presearcher} to build its query
+     * @param time the query build time
+     */
+    public void onPresearcherQueryBuilt(long time) {}
+
+    /**
+     * Called with the time spent searching the query index for candidate queries
+     * @param time the query index search time
+     * @param candidates the number of candidate queries selected
+     */
+    public void onQueryIndexSearched(long time, int candidates) {}
+
+    /**
+     * Called with the time spent running candidate queries
+     * @param time the candidate matching time
+     * @param queriesRun the number of queries run
+     */
+    public void onCandidatesMatched(long time, int queriesRun) {}
+
+    /**
+     * Called with the number of matches found in the batch
+     * @param matchingDocuments the number of documents that matched at least one query
+     * @param matches the total number of query/document matches
+     */
+    public void onMatchesFound(int matchingDocuments, int matches) {}
+
+    /**
+     * Called for each error reported during the match run
+     * @param error the error
+     */
+    public void onMatchError(MatchError error) {}
+
+    /**
+     * Called when candidate queries selected from the query index could not be found
+     * in the query cache
+     * @param misses the number of cache misses
+     */
+    public void onQueryCacheMisses(int misses) {}
+
+}
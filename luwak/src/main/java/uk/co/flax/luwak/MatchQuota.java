@@ -0,0 +1,81 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Limits the number of queries that may match each document in a {@link DocumentBatch}
+ *
+ * Once every document in the batch has reached its quota, the Monitor stops collecting
+ * candidate queries from its query index.  A MatchQuota may be shared between several
+ * CandidateMatchers running in different threads.
+ *
+ * @see Monitor#match(DocumentBatch, MatcherFactory, int)
+ */
+public final class MatchQuota {
+
+    private final int maxMatchesPerDocument;
+    private final int batchSize;
+
+    private final Map<String, Set<String>> accepted = new HashMap<>();
+    private int filledDocuments = 0;
+    private volatile boolean filled = false;
+
+    MatchQuota(int maxMatchesPerDocument, int batchSize) {
+        if (maxMatchesPerDocument < 1)
+            throw new IllegalArgumentException("Match quota must be at least 1");
+        this.maxMatchesPerDocument = maxMatchesPerDocument;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Check whether a match can be recorded
+     *
+     * Further matches from a query that has already been accepted for a document are
+     * always accepted, so that they can be resolved with the original match.
+     *
+     * @param docId the document id
+     * @param queryId the query id
+     * @return true if the match falls within the document's quota
+     */
+    public synchronized boolean accept(String docId, String queryId) {
+        Set<String> queries = accepted.computeIfAbsent(docId, k -> new HashSet<>());
+        if (queries.contains(queryId))
+            return true;
+        if (queries.size() >= maxMatchesPerDocument)
+            return false;
+        queries.add(queryId);
+        if (queries.size() == maxMatchesPerDocument) {
+            filledDocuments++;
+            if (filledDocuments == batchSize)
+                filled = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if every document in the batch has reached its quota
+     */
+    public boolean isFilled() {
+        return filled;
+    }
+
+}
@@ -0,0 +1,37 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+
+/**
+ * Reported in a {@link MatchError} when a candidate query exceeds its time budget, or is
+ * not run because it has been quarantined
+ *
+ * @see Monitor#setMatchTimeout(long, java.util.concurrent.TimeUnit)
+ * @see Monitor#setQuarantineThreshold(int)
+ */
+public class MatchTimeoutException extends IOException {
+
+    public MatchTimeoutException(String message) {
+        super(message);
+    }
+
+    public MatchTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,6 +1,7 @@
 package uk.co.flax.luwak;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /*
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -31,18 +32,25 @@ public class Matches<T extends QueryMatch> implements Iterable<DocumentMatches<T
 
     private final long queryBuildTime;
     private final long searchTime;
+    private final long queryIndexSearchTime;
+    private final long candidateMatchTime;
     private final int queriesRun;
     private final int batchSize;
 
     private final SlowLog slowlog;
 
+    private CompletableFuture<Matches<T>> slowLaneMatches = null;
+
     Matches(Map<String, DocumentMatches<T>> matches, Set<String> presearcherHits, List<MatchError> errors,
-                   long queryBuildTime, long searchTime, int queriesRun, int batchSize, SlowLog slowlog) {
+                   long queryBuildTime, long searchTime, long queryIndexSearchTime, long candidateMatchTime,
+                   int queriesRun, int batchSize, SlowLog slowlog) {
         this.matches = Collections.unmodifiableMap(matches);
         this.errors = Collections.unmodifiableList(errors);
         this.presearcherHits = Collections.unmodifiableSet(presearcherHits);
         this.queryBuildTime = queryBuildTime;
         this.searchTime = searchTime;
+        this.queryIndexSearchTime = queryIndexSearchTime;
+        this.candidateMatchTime = candidateMatchTime;
         this.queriesRun = queriesRun;
         this.batchSize = batchSize;
         this.slowlog = slowlog;
@@ -99,7 +107,7 @@ public class Matches<T extends QueryMatch> implements Iterable<DocumentMatches<T
     }
 
     /**
-     * @return how long (in ms) it took to build the Presearcher query for the matcher run
+     * @return how long (in ns) it took to build the Presearcher query for the matcher run
      */
     public long getQueryBuildTime() {
         return queryBuildTime;
@@ -112,6 +120,29 @@ public class Matches<T extends QueryMatch> implements Iterable<DocumentMatches<T
         return searchTime;
     }
 
+    /**
+     * Returns how long (in ns) was spent searching the query index and collecting
+     * candidate queries, not including the time taken to build the presearcher query
+     * or to run the candidates themselves.
+     *
+     * @return the query index search time, or -1 if not recorded
+     */
+    public long getQueryIndexSearchTime() {
+        return queryIndexSearchTime;
+    }
+
+    /**
+     * Returns how long (in ns) was spent running candidate queries against the documents.
+     *
+     * For multithreaded matchers this is the total time across all worker threads, plus
+     * any time spent handing candidates over to them.
+     *
+     * @return the candidate matching time
+     */
+    public long getCandidateMatchTime() {
+        return candidateMatchTime;
+    }
+
     /**
      * @return the number of queries passed to this CandidateMatcher during the matcher run
      */
@@ -145,4 +176,22 @@ public class Matches<T extends QueryMatch> implements Iterable<DocumentMatches<T
         return slowlog;
     }
 
+    /**
+     * Return the matches of candidate queries that were deferred to the Monitor's slow lane
+     *
+     * The slow lane runs after the rest of the candidates, on the executor passed to
+     * {@link Monitor#setSlowLane(long, java.util.concurrent.TimeUnit, java.util.concurrent.ExecutorService)},
+     * and its matches, errors and slow log are reported separately.
+     *
+     * @return a future for the slow lane's matches, or null if no candidates were deferred
+     */
+    public CompletableFuture<Matches<T>> getSlowLaneMatches() {
+        return slowLaneMatches;
+    }
+
+    // package-private, called by the Monitor
+    void setSlowLaneMatches(CompletableFuture<Matches<T>> slowLaneMatches) {
+        this.slowLaneMatches = slowLaneMatches;
+    }
+
 }
@@ -2,14 +2,18 @@ package uk.co.flax.luwak;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.search.spans.SpanCollector;
 import uk.co.flax.luwak.util.RewriteException;
 import uk.co.flax.luwak.util.SpanExtractor;
@@ -51,8 +55,19 @@ public class Monitor implements Closeable {
 
     private final List<QueryIndexUpdateListener> listeners = new ArrayList<>();
 
+    private final List<MatchListener> matchListeners = new CopyOnWriteArrayList<>();
+
     protected long slowLogLimit = 2000000;
 
+    private volatile long matchTimeout = 0;
+    private volatile int quarantineThreshold = 0;
+
+    private volatile long slowLaneThreshold = 0;
+    private volatile ExecutorService slowLaneExecutor = null;
+    private final Set<String> slowQueries = ConcurrentHashMap.newKeySet();
+
+    private final SlowQueryRegistry slowQueryRegistry = new SlowQueryRegistry();
+
     private final long commitBatchSize;
     private final boolean storeQueries;
 
@@ -63,10 +78,15 @@ public class Monitor implements Closeable {
         public static final String mq = "_mq";
     }
 
-    private final ScheduledExecutorService purgeExecutor;
+    private final PurgeScheduler purgeScheduler;
+    private final boolean ownsPurgeScheduler;
+    private final List<PurgeScheduler.Task> scheduledTasks = new ArrayList<>();
 
     private long lastPurged = -1;
 
+    private final int fullPurgeInterval;
+    private int purgesSinceFullScan = 0;
+
     /**
      * Create a new Monitor instance, using a passed in IndexWriter for its queryindex
      *
@@ -86,23 +106,39 @@ public class Monitor implements Closeable {
         this.presearcher = presearcher;
         this.decomposer = configuration.getQueryDecomposer();
         
-        this.queryIndex = new QueryIndex(indexWriter);
+        this.queryIndex = new QueryIndex(indexWriter, configuration);
 
         this.storeQueries = configuration.storeQueries();
+        this.commitBatchSize = configuration.getQueryUpdateBufferSize();
+        this.fullPurgeInterval = configuration.getFullPurgeInterval();
+
+        if (this.storeQueries)
+            replayLog();
         prepareQueryCache(this.storeQueries);
 
-        long purgeFrequency = configuration.getPurgeFrequency();
-        this.purgeExecutor = Executors.newSingleThreadScheduledExecutor();
-        this.purgeExecutor.scheduleAtFixedRate(() -> {
+        this.ownsPurgeScheduler = configuration.getPurgeScheduler() == null;
+        this.purgeScheduler = ownsPurgeScheduler ? new PurgeScheduler(1, 1, 0) : configuration.getPurgeScheduler();
+
+        this.scheduledTasks.add(purgeScheduler.schedulePurge(() -> {
             try {
-                purgeCache();
+                purge();
             }
             catch (Throwable e) {
                 afterPurgeError(e);
             }
-        }, purgeFrequency, purgeFrequency, configuration.getPurgeFrequencyUnits());
+        }, configuration.getPurgeFrequency(), configuration.getPurgeFrequencyUnits()));
 
-        this.commitBatchSize = configuration.getQueryUpdateBufferSize();
+        long commitFrequency = configuration.getCommitFrequency();
+        if (commitFrequency > 0) {
+            this.scheduledTasks.add(purgeScheduler.schedule(() -> {
+                try {
+                    commit();
+                }
+                catch (Throwable e) {
+                    afterCommitError(e);
+                }
+            }, commitFrequency, configuration.getCommitFrequencyUnits()));
+        }
     }
 
     /**
@@ -183,11 +219,21 @@ public class Monitor implements Closeable {
         listeners.add(listener);
     }
 
+    /**
+     * Register a {@link MatchListener} that will be notified of timings and counts
+     * for each stage of a match run
+     *
+     * @param listener listener to register
+     */
+    public void addMatchListener(MatchListener listener) {
+        matchListeners.add(listener);
+    }
+
     /**
      * @return Statistics for the internal query index and cache
      */
     public QueryCacheStats getQueryCacheStats() {
-        return new QueryCacheStats(queryIndex.numDocs(), queryIndex.cacheSize(), lastPurged);
+        return new QueryCacheStats(queryIndex.numDocs(), queryIndex.cacheSize(), lastPurged, getSlowQueries());
     }
 
     /**
@@ -204,10 +250,18 @@ public class Monitor implements Closeable {
         /** Time the query cache was last purged */
         public final long lastPurged;
 
-        public QueryCacheStats(int queries, int cachedQueries, long lastPurged) {
+        /** Ids of the queries in the slow lane */
+        public final Set<String> slowQueries;
+
+        public QueryCacheStats(int queries, int cachedQueries, long lastPurged, Set<String> slowQueries) {
             this.queries = queries;
             this.cachedQueries = cachedQueries;
             this.lastPurged = lastPurged;
+            this.slowQueries = slowQueries;
+        }
+
+        public QueryCacheStats(int queries, int cachedQueries, long lastPurged) {
+            this(queries, cachedQueries, lastPurged, Collections.emptySet());
         }
     }
 
@@ -252,10 +306,41 @@ public class Monitor implements Closeable {
             throw new IOException("Error populating cache - some queries couldn't be parsed:" + parseErrors);
     }
 
-    private void commit(List<Indexable> updates) throws IOException {
+    private void replayLog() throws IOException {
+        queryIndex.replayLog(new QueryIndexLog.Replayer() {
+            @Override
+            public void update(List<MonitorQuery> queries) throws IOException {
+                try {
+                    Monitor.this.update(queries);
+                }
+                catch (UpdateException e) {
+                    throw new IOException("Error replaying queryindex log - some queries couldn't be parsed:" + e.errors);
+                }
+            }
+
+            @Override
+            public void delete(List<String> ids) throws IOException {
+                deleteById(ids);
+            }
+
+            @Override
+            public void clear() throws IOException {
+                Monitor.this.clear();
+            }
+        });
+    }
+
+    private long commit(List<MonitorQuery> queries, List<Indexable> updates) throws IOException {
         beforeCommit(updates);
-        queryIndex.commit(updates);
+        long generation = queryIndex.update(queries, updates);
         afterCommit(updates);
+        return generation;
+    }
+
+    private void afterCommitError(Throwable t) {
+        for (QueryIndexUpdateListener listener : listeners) {
+            listener.onCommitError(t);
+        }
     }
 
     private void afterPurge() {
@@ -313,6 +398,17 @@ public class Monitor implements Closeable {
         afterPurge();
     }
 
+    // package-private for testing
+    void purge() throws IOException {
+        if (++purgesSinceFullScan < fullPurgeInterval && queryIndex.purgeRemovedQueries()) {
+            lastPurged = System.nanoTime();
+            afterPurge();
+            return;
+        }
+        purgesSinceFullScan = 0;
+        purgeCache();
+    }
+
     /**
      * Set the slow log limit
      *
@@ -327,10 +423,124 @@ public class Monitor implements Closeable {
         this.slowLogLimit = limit;
     }
 
+    /**
+     * Get the registry that aggregates the slow logs of this Monitor's match runs
+     *
+     * Timings are kept until a query is updated or deleted, or the registry is cleared.
+     *
+     * @return the Monitor's SlowQueryRegistry
+     *
+     * @see #setSlowLogLimit(long)
+     */
+    public SlowQueryRegistry getSlowQueryRegistry() {
+        return slowQueryRegistry;
+    }
+
+    /**
+     * Limit the time that each candidate query may take to run
+     *
+     * Candidates that exceed the limit are stopped, and reported as a {@link MatchError} with
+     * a {@link MatchTimeoutException}.  A query can set its own limit, in milliseconds, with the
+     * {@link CandidateMatcher#MATCH_TIMEOUT_METADATA} metadata key.  Limits are enforced
+     * cooperatively, while the query enumerates the terms of the DocumentBatch or collects
+     * matches, so a candidate may overrun its limit before it is stopped.
+     *
+     * @param timeout the time limit, or 0 for no limit
+     * @param units the units of the time limit
+     *
+     * @see CandidateMatcher#setMatchTimeout(long)
+     */
+    public void setMatchTimeout(long timeout, TimeUnit units) {
+        this.matchTimeout = units.toNanos(timeout);
+    }
+
+    /**
+     * Stop running queries that have repeatedly exceeded their time limit
+     *
+     * Once a query has timed out this many times, it is no longer run, and each time it is selected
+     * by the presearcher it is reported as a {@link MatchError} with a {@link MatchTimeoutException}.
+     * The quarantine is lifted when the query is updated.  The default is 0, so queries are never
+     * quarantined.
+     *
+     * @param timeouts the number of timeouts after which a query is quarantined, or 0 to disable quarantine
+     *
+     * @see #setMatchTimeout(long, TimeUnit)
+     */
+    public void setQuarantineThreshold(int timeouts) {
+        this.quarantineThreshold = timeouts;
+    }
+
+    /**
+     * Run chronically slow queries in a separate slow lane
+     *
+     * The Monitor keeps a moving average of the time each query takes to run, and once a query's
+     * average exceeds the threshold, the query is moved to the slow lane.  Slow lane queries are
+     * still selected by the presearcher, but rather than being run with the other candidates, they
+     * are run afterwards against a copy of the DocumentBatch on the passed in executor.  Their
+     * matches are returned asynchronously by {@link Matches#getSlowLaneMatches()}, so that a few
+     * expensive queries don't hold up the matches of all the others.  Slow lane runs are not
+     * reported to {@link MatchListener}s.
+     *
+     * Queries stay in the slow lane until they are updated or deleted, or are released with
+     * {@link #releaseSlowQuery(String)}.
+     *
+     * @param threshold the average time above which queries are moved to the slow lane, or 0 to disable
+     *                  the slow lane
+     * @param units the units of the threshold
+     * @param executor the ExecutorService to run slow lane queries on
+     */
+    public void setSlowLane(long threshold, TimeUnit units, ExecutorService executor) {
+        if (threshold > 0 && executor == null)
+            throw new IllegalArgumentException("An executor is required to run the slow lane");
+        this.slowLaneExecutor = executor;
+        this.slowLaneThreshold = units.toNanos(threshold);
+    }
+
+    /**
+     * @return the ids of the queries in the slow lane
+     */
+    public Set<String> getSlowQueries() {
+        return Collections.unmodifiableSet(new HashSet<>(slowQueries));
+    }
+
+    /**
+     * Move a query out of the slow lane, discarding its timings
+     *
+     * @param queryId the id of the query to release
+     * @return true if the query was in the slow lane
+     * @throws IOException on IO errors
+     */
+    public boolean releaseSlowQuery(String queryId) throws IOException {
+        if (slowQueries.remove(queryId) == false)
+            return false;
+        queryIndex.search(new TermQuery(new Term(FIELDS.id, queryId)), (id, query, dataValues) -> {
+            if (query != null)
+                query.resetCost();
+        });
+        return true;
+    }
+
+    /**
+     * Durably commit all changes made to the queryindex
+     *
+     * This is only necessary if commits have been deferred using
+     * {@link QueryIndexConfiguration#setCommitFrequency(long, TimeUnit)}; otherwise, every
+     * change is committed as it is made.
+     *
+     * @throws IOException on IO errors
+     */
+    public void commit() throws IOException {
+        queryIndex.commit();
+    }
+
     @Override
     public void close() throws IOException {
-        purgeExecutor.shutdown();
-        queryIndex.closeWhileHandlingException();
+        for (PurgeScheduler.Task task : scheduledTasks) {
+            task.cancel();
+        }
+        if (ownsPurgeScheduler)
+            purgeScheduler.close();
+        queryIndex.close();
     }
 
     /**
@@ -340,27 +550,103 @@ public class Monitor implements Closeable {
      * @throws UpdateException if any of the queries could not be added
      */
     public void update(Iterable<MonitorQuery> queries) throws IOException, UpdateException {
+        List<QueryError> errors = new ArrayList<>();
+        waitForGeneration(update(queries, errors));
+        if (errors.isEmpty() == false)
+            throw new UpdateException(errors);
+    }
 
+    /**
+     * Add new queries to the monitor, without waiting for them to become visible to {@link #match}
+     *
+     * If the queryindex is configured with {@link QueryIndexConfiguration#setMaxStaleness(long, TimeUnit)},
+     * then the queries will become visible at the next background refresh.  Pass the returned generation
+     * to {@link #waitForGeneration(long)} to wait for them.  Otherwise, this behaves in the same way as
+     * {@link #update(Iterable)}.
+     *
+     * If any of the queries could not be added, this method waits for the remaining queries to become
+     * visible before throwing an UpdateException.
+     *
+     * @param queries the MonitorQueries to add
+     * @return the queryindex generation at which the queries will become visible
+     * @throws IOException on IO errors
+     * @throws UpdateException if any of the queries could not be added
+     */
+    public long updateAsync(Iterable<MonitorQuery> queries) throws IOException, UpdateException {
         List<QueryError> errors = new ArrayList<>();
+        long generation = update(queries, errors);
+        if (errors.isEmpty() == false) {
+            waitForGeneration(generation);
+            throw new UpdateException(errors);
+        }
+        return generation;
+    }
+
+    /**
+     * Add new queries to the monitor, without waiting for them to become visible to {@link #match}
+     * @param queries the MonitorQueries to add
+     * @return the queryindex generation at which the queries will become visible
+     * @throws IOException on IO errors
+     * @throws UpdateException if any of the queries could not be added
+     *
+     * @see #updateAsync(Iterable)
+     */
+    public long updateAsync(MonitorQuery... queries) throws IOException, UpdateException {
+        return updateAsync(Arrays.asList(queries));
+    }
+
+    /**
+     * Wait until all changes up to a given queryindex generation are visible to {@link #match}
+     * @param generation the generation to wait for
+     * @throws IOException if interrupted while waiting
+     */
+    public void waitForGeneration(long generation) throws IOException {
+        waitForGeneration(generation, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait until all changes up to a given queryindex generation are visible to {@link #match}
+     * @param generation the generation to wait for
+     * @param timeout the maximum time to wait
+     * @param units the units of the timeout
+     * @return true if the changes are visible, false if the timeout expired first
+     * @throws IOException if interrupted while waiting
+     */
+    public boolean waitForGeneration(long generation, long timeout, TimeUnit units) throws IOException {
+        try {
+            return queryIndex.waitForGeneration(generation, timeout, units);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for queryindex generation " + generation);
+        }
+    }
+
+    private long update(Iterable<MonitorQuery> queries, List<QueryError> errors) throws IOException {
+
+        List<MonitorQuery> batch = new ArrayList<>();
         List<Indexable> updates = new ArrayList<>();
 
         for (MonitorQuery query : queries) {
             try {
+                List<Indexable> indexables = new ArrayList<>();
                 for (QueryCacheEntry queryCacheEntry : decomposeQuery(query)) {
-                    updates.add(new Indexable(query.getId(), queryCacheEntry, buildIndexableQuery(query.getId(), query, queryCacheEntry)));
+                    indexables.add(new Indexable(query.getId(), queryCacheEntry, buildIndexableQuery(query.getId(), query, queryCacheEntry)));
                 }
+                batch.add(query);
+                updates.addAll(indexables);
+                slowQueries.remove(query.getId());
+                slowQueryRegistry.remove(Collections.singleton(query.getId()));
             } catch (Exception e) {
                 errors.add(new QueryError(query, e));
             }
             if (updates.size() > commitBatchSize) {
-                commit(updates);
+                commit(batch, updates);
+                batch.clear();
                 updates.clear();
             }
         }
-        commit(updates);
-
-        if (errors.isEmpty() == false)
-            throw new UpdateException(errors);
+        return commit(batch, updates);
     }
 
     private Iterable<QueryCacheEntry> decomposeQuery(MonitorQuery query) throws Exception {
@@ -370,12 +656,14 @@ public class Monitor implements Closeable {
         BytesRef rootHash = query.hash();
 
         int upto = 0;
+        Collection<Query> subqueries = decomposer.decompose(q);
+        boolean decomposed = subqueries.size() > 1;
         List<QueryCacheEntry> cacheEntries = new LinkedList<>();
-        for (Query subquery : decomposer.decompose(q)) {
+        for (Query subquery : subqueries) {
             BytesRefBuilder subHash = new BytesRefBuilder();
             subHash.append(rootHash);
             subHash.append(new BytesRef("_" + upto++));
-            cacheEntries.add(new QueryCacheEntry(subHash.toBytesRef(), subquery, query.getMetadata()));
+            cacheEntries.add(new QueryCacheEntry(subHash.toBytesRef(), subquery, query.getMetadata(), decomposed));
         }
 
         return cacheEntries;
@@ -397,10 +685,11 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public void delete(Iterable<MonitorQuery> queries) throws IOException {
+        List<String> ids = new ArrayList<>();
         for (MonitorQuery mq : queries) {
-            queryIndex.deleteDocuments(new Term(Monitor.FIELDS.del, mq.getId()));
+            ids.add(mq.getId());
         }
-        commit(null);
+        deleteById(ids);
     }
 
     /**
@@ -409,10 +698,16 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public void deleteById(Iterable<String> queryIds) throws IOException {
+        List<String> ids = new ArrayList<>();
         for (String queryId : queryIds) {
-            queryIndex.deleteDocuments(new Term(FIELDS.del, queryId));
+            ids.add(queryId);
         }
-        commit(null);
+        slowQueries.removeAll(ids);
+        slowQueryRegistry.remove(ids);
+        beforeCommit(null);
+        long generation = queryIndex.delete(ids);
+        afterCommit(null);
+        waitForGeneration(generation);
     }
 
     /**
@@ -429,8 +724,12 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public void clear() throws IOException {
-        queryIndex.deleteDocuments(new MatchAllDocsQuery());
-        commit(null);
+        beforeCommit(null);
+        long generation = queryIndex.clear();
+        slowQueries.clear();
+        slowQueryRegistry.clear();
+        afterCommit(null);
+        waitForGeneration(generation);
     }
 
     /**
@@ -443,10 +742,232 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public <T extends QueryMatch> Matches<T> match(DocumentBatch docs, MatcherFactory<T> factory) throws IOException {
+        CandidateMatcher<T> matcher = createMatcher(docs, factory);
+        SlowLane<T> slowLane = slowLane(docs, factory, m -> {});
+        int cacheMisses = match(matcher, slowLane, null);
+        Matches<T> matches = matcher.getMatches();
+        slowQueryRegistry.record(matches.getSlowLog());
+        if (slowLane != null)
+            matches.setSlowLaneMatches(slowLane.submit());
+        if (matchListeners.isEmpty() == false)
+            afterMatch(docs, matches, cacheMisses);
+        return matches;
+    }
+
+    /**
+     * Match a {@link DocumentBatch} against the queryindex, passing each match to a {@link MatchHandler}
+     * as soon as it is found.
+     *
+     * Matches are not collected, so the returned {@link Matches} object contains statistics, errors
+     * and the slow log for the run, but no {@link DocumentMatches}.  Each query is reported at most once
+     * per document; if a query has been decomposed into several disjuncts that all match, only the first
+     * match is passed to the handler, rather than being combined with {@link CandidateMatcher#resolve}.
+     *
+     * The handler is called on the matcher's threads, and must be thread-safe if the matcher is
+     * multithreaded.  To deduplicate, the run keeps the id of each matching document, and the query
+     * ids matched by each document for those queries that have been decomposed; matches of queries
+     * that have not been decomposed are passed straight to the handler.
+     *
+     * @param docs the DocumentBatch to match
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for the match run
+     * @param handler the {@link MatchHandler} to pass matches to
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return a {@link Matches} object summarizing the match run.
+     * @throws IOException on IO errors
+     */
+    public <T extends QueryMatch> Matches<T> match(DocumentBatch docs, MatcherFactory<T> factory,
+                                                   MatchHandler<T> handler) throws IOException {
+        CandidateMatcher<T> matcher = createMatcher(docs, factory);
+        DeduplicatingMatchHandler<T> dedup = new DeduplicatingMatchHandler<>(handler);
+        matcher.setMatchHandler(dedup);
+        SlowLane<T> slowLane = slowLane(docs, factory, m -> m.setMatchHandler(dedup));
+        int cacheMisses = match(matcher, slowLane, dedup);
+        Matches<T> matches = matcher.getMatches();
+        slowQueryRegistry.record(matches.getSlowLog());
+        if (slowLane != null)
+            matches.setSlowLaneMatches(slowLane.submit());
+        if (matchListeners.isEmpty() == false)
+            afterMatch(docs, matches, cacheMisses, dedup.matchingDocs.size(), dedup.matchCount.get());
+        return matches;
+    }
+
+    /**
+     * Match a {@link DocumentBatch} against the queryindex, stopping once each document in the batch has
+     * matched a given number of queries.
+     *
+     * Use a limit of 1 to find out whether documents match any query at all.  Once every document has
+     * reached the limit, no further candidate queries are collected from the queryindex or run.  Which
+     * queries are reported is determined by the order of the queryindex, and not by relevance.
+     *
+     * If a slow lane is configured, its matches count towards the same limit, so each document
+     * is reported with at most this many matches across both lanes.  The slow lane is not run
+     * if every document has already reached the limit.
+     *
+     * @param docs the DocumentBatch to match
+     * @param factory a {@link MatcherFactory} to use to create a {@link CandidateMatcher} for the match run
+     * @param maxMatchesPerDocument the maximum number of queries to report for each document
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return a {@link Matches} object summarizing the match run.
+     * @throws IOException on IO errors
+     */
+    public <T extends QueryMatch> Matches<T> match(DocumentBatch docs, MatcherFactory<T> factory,
+                                                   int maxMatchesPerDocument) throws IOException {
+        CandidateMatcher<T> matcher = createMatcher(docs, factory);
+        // the slow lane shares the quota, so that it only fills the places left by the main run
+        MatchQuota quota = new MatchQuota(maxMatchesPerDocument, docs.getBatchSize());
+        matcher.setMatchQuota(quota);
+        SlowLane<T> slowLane = slowLane(docs, factory, m -> m.setMatchQuota(quota));
+        int cacheMisses = match(matcher, slowLane, null);
+        Matches<T> matches = matcher.getMatches();
+        slowQueryRegistry.record(matches.getSlowLog());
+        if (slowLane != null && quota.isFilled() == false)
+            matches.setSlowLaneMatches(slowLane.submit());
+        if (matchListeners.isEmpty() == false)
+            afterMatch(docs, matches, cacheMisses);
+        return matches;
+    }
+
+    private <T extends QueryMatch> CandidateMatcher<T> createMatcher(DocumentBatch docs, MatcherFactory<T> factory) {
         CandidateMatcher<T> matcher = factory.createMatcher(docs);
         matcher.setSlowLogLimit(slowLogLimit);
-        match(matcher);
-        return matcher.getMatches();
+        matcher.setMatchTimeout(matchTimeout);
+        matcher.setQuarantineThreshold(quarantineThreshold);
+        return matcher;
+    }
+
+    private <T extends QueryMatch> SlowLane<T> slowLane(DocumentBatch docs, MatcherFactory<T> factory,
+                                                        Consumer<CandidateMatcher<T>> configuration) {
+        long threshold = slowLaneThreshold;
+        ExecutorService executor = slowLaneExecutor;
+        if (threshold <= 0 || executor == null)
+            return null;
+        return new SlowLane<>(docs, factory, configuration, threshold, executor);
+    }
+
+    // Collects the candidates of queries in the slow lane, and runs them against a copy of the
+    // DocumentBatch once the rest of the batch's candidates have been run
+    private class SlowLane<T extends QueryMatch> {
+
+        final List<InputDocument> documents = new ArrayList<>();
+        final Similarity similarity;
+        final MatcherFactory<T> factory;
+        final Consumer<CandidateMatcher<T>> configuration;
+        final long threshold;
+        final ExecutorService executor;
+
+        final List<String> ids = new ArrayList<>();
+        final List<QueryCacheEntry> entries = new ArrayList<>();
+
+        SlowLane(DocumentBatch docs, MatcherFactory<T> factory, Consumer<CandidateMatcher<T>> configuration,
+                 long threshold, ExecutorService executor) {
+            for (InputDocument doc : docs) {
+                documents.add(doc);
+            }
+            this.similarity = docs.similarity;
+            this.factory = factory;
+            this.configuration = configuration;
+            this.threshold = threshold;
+            this.executor = executor;
+        }
+
+        // returns true if the candidate's query is in the slow lane, and has been deferred
+        boolean defer(String id, QueryCacheEntry entry) {
+            if (slowQueries.contains(id) == false) {
+                if (entry.getCost() <= threshold)
+                    return false;
+                slowQueries.add(id);
+            }
+            synchronized (this) {
+                ids.add(id);
+                entries.add(entry);
+            }
+            return true;
+        }
+
+        synchronized CompletableFuture<Matches<T>> submit() {
+            if (ids.isEmpty())
+                return null;
+            return CompletableFuture.supplyAsync(this::run, executor);
+        }
+
+        Matches<T> run() {
+            try (DocumentBatch batch = new DocumentBatch.Builder().addAll(documents).setSimilarity(similarity).build()) {
+                CandidateMatcher<T> matcher = createMatcher(batch, factory);
+                configuration.accept(matcher);
+                for (int i = 0; i < ids.size(); i++) {
+                    try {
+                        matcher.matchQuery(ids.get(i), entries.get(i));
+                    }
+                    catch (Exception e) {
+                        matcher.reportError(new MatchError(ids.get(i), e));
+                    }
+                }
+                matcher.finish(0, ids.size());
+                Matches<T> matches = matcher.getMatches();
+                slowQueryRegistry.record(matches.getSlowLog());
+                return matches;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Passes on the first match for each query/document pair.  Only a query decomposed into
+    // several cache entries can match a document more than once, so only their matches are recorded
+    private static class DeduplicatingMatchHandler<T extends QueryMatch> implements MatchHandler<T> {
+
+        final MatchHandler<T> delegate;
+        // ids of the decomposed queries selected as candidates, registered before they are run
+        final Set<String> decomposedIds = ConcurrentHashMap.newKeySet();
+        // doc id -> ids of the decomposed queries it has matched
+        final Map<String, Set<String>> seen = new ConcurrentHashMap<>();
+        final Set<String> matchingDocs = ConcurrentHashMap.newKeySet();
+        final AtomicInteger matchCount = new AtomicInteger();
+
+        private DeduplicatingMatchHandler(MatchHandler<T> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onMatch(T match) {
+            if (decomposedIds.contains(match.getQueryId())) {
+                Set<String> queryIds = seen.computeIfAbsent(match.getDocId(), k -> ConcurrentHashMap.newKeySet());
+                if (queryIds.add(match.getQueryId()) == false)
+                    return;
+            }
+            matchCount.incrementAndGet();
+            matchingDocs.add(match.getDocId());
+            delegate.onMatch(match);
+        }
+    }
+
+    private <T extends QueryMatch> void afterMatch(DocumentBatch docs, Matches<T> matches, int cacheMisses) {
+        int matchingDocs = 0;
+        int matchCount = 0;
+        for (DocumentMatches<T> docMatches : matches) {
+            int count = docMatches.getMatches().size();
+            if (count > 0) {
+                matchingDocs++;
+                matchCount += count;
+            }
+        }
+        afterMatch(docs, matches, cacheMisses, matchingDocs, matchCount);
+    }
+
+    private void afterMatch(DocumentBatch docs, Matches<?> matches, int cacheMisses, int matchingDocs, int matchCount) {
+        for (MatchListener listener : matchListeners) {
+            listener.onBatchIndexed(docs.getBatchSize(), docs.getIndexTime());
+            listener.onPresearcherQueryBuilt(matches.getQueryBuildTime());
+            listener.onQueryIndexSearched(matches.getQueryIndexSearchTime(), matches.getQueriesRun() + cacheMisses);
+            listener.onCandidatesMatched(matches.getCandidateMatchTime(), matches.getQueriesRun());
+            listener.onMatchesFound(matchingDocs, matchCount);
+            for (MatchError error : matches.getErrors()) {
+                listener.onMatchError(error);
+            }
+            if (cacheMisses > 0)
+                listener.onQueryCacheMisses(cacheMisses);
+        }
     }
 
     /**
@@ -476,10 +997,18 @@ public class Monitor implements Closeable {
         }
     }
 
-    private <T extends QueryMatch> void match(CandidateMatcher<T> matcher) throws IOException {
-        StandardQueryCollector<T> collector = new StandardQueryCollector<>(matcher);
+    // returns the number of candidates that were missing from the query cache
+    private <T extends QueryMatch> int match(CandidateMatcher<T> matcher, SlowLane<T> slowLane,
+                                             DeduplicatingMatchHandler<T> dedup) throws IOException {
+        StandardQueryCollector<T> collector = new StandardQueryCollector<>(matcher, slowLane, dedup);
+        long searchTime = System.nanoTime();
         long buildTime = queryIndex.search(new PresearcherQueryBuilder(matcher.getIndexReader()), collector);
-        matcher.finish(buildTime, collector.queryCount);
+        // candidates are run from within the query index collector, so subtract their time; if
+        // segments are searched concurrently, candidate time may add up to more than the elapsed time
+        searchTime = System.nanoTime() - searchTime - buildTime - matcher.getCandidateMatchTime();
+        matcher.setQueryIndexSearchTime(Math.max(0, searchTime));
+        matcher.finish(buildTime, collector.queryCount.get());
+        return collector.cacheMisses.get();
     }
 
     /**
@@ -538,6 +1067,7 @@ public class Monitor implements Closeable {
         doc.add(new StringField(FIELDS.del, id, Field.Store.NO));
         doc.add(new SortedDocValuesField(FIELDS.id, new BytesRef(id)));
         doc.add(new BinaryDocValuesField(FIELDS.hash, query.hash));
+        doc.add(new StringField(FIELDS.hash, query.hash, Field.Store.NO));
         if (storeQueries)
             doc.add(new BinaryDocValuesField(FIELDS.mq, MonitorQuery.serialize(mq)));
         return doc;
@@ -547,19 +1077,41 @@ public class Monitor implements Closeable {
     private static class StandardQueryCollector<T extends QueryMatch> implements QueryIndex.QueryCollector {
 
         final CandidateMatcher<T> matcher;
-        int queryCount = 0;
+        final SlowLane<T> slowLane;
+        final DeduplicatingMatchHandler<T> dedup;
+        final AtomicInteger queryCount = new AtomicInteger();
+        final AtomicInteger cacheMisses = new AtomicInteger();
 
-        private StandardQueryCollector(CandidateMatcher<T> matcher) {
+        private StandardQueryCollector(CandidateMatcher<T> matcher, SlowLane<T> slowLane,
+                                       DeduplicatingMatchHandler<T> dedup) {
             this.matcher = matcher;
+            this.slowLane = slowLane;
+            this.dedup = dedup;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return matcher.isFilled();
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return matcher.acceptsConcurrentCandidates();
         }
 
         @Override
         public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
-            if (query == null)
+            if (query == null) {
+                cacheMisses.incrementAndGet();
+                return;
+            }
+            if (dedup != null && query.decomposed)
+                dedup.decomposedIds.add(id);
+            if (slowLane != null && slowLane.defer(id, query))
                 return;
             try {
-                queryCount++;
-                matcher.matchQuery(id, query.matchQuery, query.metadata);
+                queryCount.incrementAndGet();
+                matcher.matchQuery(id, query);
             }
             catch (Exception e) {
                 matcher.reportError(new MatchError(id, e));
@@ -589,7 +1141,8 @@ public class Monitor implements Closeable {
                 }
             }
         };
-        queryIndex.search(queryBuilder, collector);
+        long buildTime = queryIndex.search(queryBuilder, collector);
+        collector.matcher.finish(buildTime, collector.queryCount.get());
         return collector.getMatches();
     }
 
@@ -611,13 +1164,19 @@ public class Monitor implements Closeable {
         public final Map<String, StringBuilder> matchingTerms = new HashMap<>();
 
         private PresearcherQueryCollector(CandidateMatcher<T> matcher) {
-            super(matcher);
+            super(matcher, null, null);
         }
 
         public PresearcherMatches<T> getMatches() {
             return new PresearcherMatches<>(matchingTerms, matcher.getMatches());
         }
 
+        // matchingTerms is not thread-safe, so candidates must be collected one at a time
+        @Override
+        public boolean isThreadSafe() {
+            return false;
+        }
+
         @Override
         public void matchQuery(final String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
 
@@ -0,0 +1,200 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Holds a number of Monitors, for example one per tenant, and matches documents against all of them
+ *
+ * Each {@link DocumentBatch} is indexed once, and then matched against every Monitor in the group in
+ * parallel.  Results are returned in a {@link GroupMatches} object, keyed by the id under which
+ * each Monitor was added to the group.
+ *
+ * Monitors that share a {@link uk.co.flax.luwak.presearcher.TermFilteredPresearcher} with a
+ * {@link uk.co.flax.luwak.presearcher.PresearcherQueryCache} will also only extract the batch's
+ * presearcher terms once.
+ *
+ * Closing the group closes all its Monitors.
+ */
+public class MonitorGroup implements Closeable {
+
+    private final Map<String, Monitor> monitors = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    /**
+     * Create a new MonitorGroup, matching on one thread per available processor
+     */
+    public MonitorGroup() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a new MonitorGroup with its own thread pool
+     * @param threads the number of threads to match on
+     */
+    public MonitorGroup(int threads) {
+        this(Executors.newFixedThreadPool(threads), true);
+    }
+
+    /**
+     * Create a new MonitorGroup that matches using a shared executor
+     *
+     * The executor is not shut down when the group is closed.
+     *
+     * @param executor the executor to match on
+     */
+    public MonitorGroup(ExecutorService executor) {
+        this(executor, false);
+    }
+
+    private MonitorGroup(ExecutorService executor, boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Add a Monitor to the group
+     * @param id an id for the Monitor, used to key its results
+     * @param monitor the Monitor
+     * @throws IllegalArgumentException if the group already holds a Monitor with the same id
+     */
+    public void add(String id, Monitor monitor) {
+        if (monitors.putIfAbsent(id, monitor) != null)
+            throw new IllegalArgumentException("MonitorGroup already contains a monitor with id " + id);
+    }
+
+    /**
+     * Remove a Monitor from the group, without closing it
+     * @param id the Monitor's id
+     * @return the removed Monitor, or null if there was no Monitor with the given id
+     */
+    public Monitor remove(String id) {
+        return monitors.remove(id);
+    }
+
+    /**
+     * Get a Monitor from the group
+     * @param id the Monitor's id
+     * @return the Monitor, or null if there is no Monitor with the given id
+     */
+    public Monitor get(String id) {
+        return monitors.get(id);
+    }
+
+    /**
+     * @return the ids of all Monitors in the group
+     */
+    public Set<String> getMonitorIds() {
+        return Collections.unmodifiableSet(monitors.keySet());
+    }
+
+    /**
+     * @return the number of Monitors in the group
+     */
+    public int size() {
+        return monitors.size();
+    }
+
+    /**
+     * Match an {@link InputDocument} against every Monitor in the group
+     * @param doc the document to match
+     * @param factory a {@link MatcherFactory} used to create a {@link CandidateMatcher} for each Monitor
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return a {@link GroupMatches} object holding each Monitor's matches
+     * @throws IOException on IO errors
+     */
+    public <T extends QueryMatch> GroupMatches<T> match(InputDocument doc, MatcherFactory<T> factory) throws IOException {
+        try (DocumentBatch batch = DocumentBatch.of(doc)) {
+            return match(batch, factory);
+        }
+    }
+
+    /**
+     * Match a {@link DocumentBatch} against every Monitor in the group
+     *
+     * The batch is matched against each Monitor in parallel.  If matching fails for a particular
+     * Monitor, the exception is reported by {@link GroupMatches#getFailures()}, and the other Monitors'
+     * matches are still returned.
+     *
+     * @param docs the batch to match
+     * @param factory a {@link MatcherFactory} used to create a {@link CandidateMatcher} for each Monitor
+     * @param <T> the type of {@link QueryMatch} to return
+     * @return a {@link GroupMatches} object holding each Monitor's matches
+     * @throws IOException on IO errors
+     */
+    public <T extends QueryMatch> GroupMatches<T> match(DocumentBatch docs, MatcherFactory<T> factory) throws IOException {
+
+        long start = System.nanoTime();
+
+        List<Map.Entry<String, Monitor>> entries = new ArrayList<>(monitors.entrySet());
+        Map<String, Matches<T>> matches = new LinkedHashMap<>();
+        Map<String, Throwable> failures = new LinkedHashMap<>();
+        if (entries.isEmpty())
+            return new GroupMatches<>(matches, failures, docs, System.nanoTime() - start);
+
+        // the calling thread matches the last Monitor itself
+        Map.Entry<String, Monitor> last = entries.remove(entries.size() - 1);
+        List<Future<Matches<T>>> futures = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Monitor> entry : entries) {
+            futures.add(executor.submit(() -> entry.getValue().match(docs, factory)));
+        }
+
+        try {
+            matches.put(last.getKey(), last.getValue().match(docs, factory));
+        }
+        catch (Exception e) {
+            failures.put(last.getKey(), e);
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            String id = entries.get(i).getKey();
+            try {
+                matches.put(id, futures.get(i).get());
+            }
+            catch (ExecutionException e) {
+                failures.put(id, e.getCause());
+            }
+            catch (InterruptedException e) {
+                for (Future<Matches<T>> future : futures) {
+                    future.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while matching against monitor " + id);
+            }
+        }
+
+        return new GroupMatches<>(matches, failures, docs, System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsExecutor)
+            executor.shutdown();
+        List<Monitor> toClose = new ArrayList<>(monitors.values());
+        monitors.clear();
+        IOUtils.close(toClose);
+    }
+
+}
@@ -0,0 +1,185 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.util.concurrent.*;
+
+/**
+ * Runs the background tasks of one or more Monitors: querycache purges, and deferred
+ * queryindex commits.
+ *
+ * By default, each Monitor creates its own single-threaded scheduler.  A PurgeScheduler
+ * can instead be shared between Monitors by passing it to
+ * {@link QueryIndexConfiguration#setPurgeScheduler(PurgeScheduler)}, so that many Monitors
+ * in the same JVM can use a small pool of threads.
+ *
+ * The delay before each purge is randomly varied by up to a given fraction of the purge
+ * frequency, so that Monitors created at the same time do not all purge at once, and no more
+ * than a given number of purges are run at the same time.  A purge that cannot run because
+ * too many others are running is retried after a short delay.
+ *
+ * Closing a PurgeScheduler shuts down its executor, if the executor was created by the
+ * PurgeScheduler itself.
+ */
+public class PurgeScheduler implements Closeable {
+
+    private static final long RETRY_DELAY_MS = 100;
+
+    private final ScheduledExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Semaphore purgePermits;
+    private final double jitter;
+
+    /**
+     * Create a new PurgeScheduler using a shared executor
+     * @param executor the executor to run tasks on
+     * @param maxConcurrentPurges the maximum number of purges to run at the same time
+     * @param jitter the maximum fraction of the purge frequency by which to vary the delay
+     *               between purges, between 0 and 1
+     */
+    public PurgeScheduler(ScheduledExecutorService executor, int maxConcurrentPurges, double jitter) {
+        this(executor, false, maxConcurrentPurges, jitter);
+    }
+
+    /**
+     * Create a new PurgeScheduler with its own thread pool
+     * @param threads the number of threads to use
+     * @param maxConcurrentPurges the maximum number of purges to run at the same time
+     * @param jitter the maximum fraction of the purge frequency by which to vary the delay
+     *               between purges, between 0 and 1
+     */
+    public PurgeScheduler(int threads, int maxConcurrentPurges, double jitter) {
+        this(newExecutor(threads), true, maxConcurrentPurges, jitter);
+    }
+
+    private static ScheduledExecutorService newExecutor(int threads) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads);
+        // don't hold on to the tasks of closed Monitors until they would next have run
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    private PurgeScheduler(ScheduledExecutorService executor, boolean ownsExecutor, int maxConcurrentPurges, double jitter) {
+        if (maxConcurrentPurges < 1)
+            throw new IllegalArgumentException("maxConcurrentPurges must be at least 1");
+        if (jitter < 0 || jitter > 1)
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.purgePermits = new Semaphore(maxConcurrentPurges);
+        this.jitter = jitter;
+    }
+
+    /**
+     * A task that has been scheduled on a PurgeScheduler
+     */
+    interface Task {
+        void cancel();
+    }
+
+    /**
+     * Schedule a purge to run repeatedly
+     * @param purge the purge
+     * @param frequency the time between purges
+     * @param units the units of the frequency
+     * @return a Task that can be used to cancel the purge
+     */
+    Task schedulePurge(Runnable purge, long frequency, TimeUnit units) {
+        PurgeTask task = new PurgeTask(purge, units.toNanos(frequency));
+        task.schedule(nextDelay(task.period));
+        return task;
+    }
+
+    /**
+     * Schedule a task to run repeatedly, without jitter and without counting
+     * against the purge limit
+     * @param command the task
+     * @param frequency the time between runs
+     * @param units the units of the frequency
+     * @return a Task that can be used to cancel further runs
+     */
+    Task schedule(Runnable command, long frequency, TimeUnit units) {
+        ScheduledFuture<?> future = executor.scheduleWithFixedDelay(command, frequency, frequency, units);
+        return () -> future.cancel(false);
+    }
+
+    // package-private for testing
+    long nextDelay(long period) {
+        if (jitter == 0)
+            return period;
+        double variation = (ThreadLocalRandom.current().nextDouble() * 2 - 1) * jitter;
+        return (long) (period * (1 + variation));
+    }
+
+    private final class PurgeTask implements Runnable, Task {
+
+        final Runnable purge;
+        final long period;
+
+        private volatile boolean cancelled = false;
+        private volatile ScheduledFuture<?> future;
+
+        PurgeTask(Runnable purge, long period) {
+            this.purge = purge;
+            this.period = period;
+        }
+
+        synchronized void schedule(long delay) {
+            if (cancelled)
+                return;
+            try {
+                future = executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                // the executor has been shut down
+                cancelled = true;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (cancelled)
+                return;
+            if (purgePermits.tryAcquire() == false) {
+                schedule(nextDelay(TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY_MS)));
+                return;
+            }
+            try {
+                purge.run();
+            }
+            finally {
+                purgePermits.release();
+                schedule(nextDelay(period));
+            }
+        }
+
+        @Override
+        public synchronized void cancel() {
+            cancelled = true;
+            if (future != null)
+                future.cancel(false);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownsExecutor)
+            executor.shutdown();
+    }
+
+}
@@ -15,10 +15,14 @@ package uk.co.flax.luwak;
  *   limitations under the License.
  */
 
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.search.Query;
 import org.apache.lucene.util.BytesRef;
+import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
+import uk.co.flax.luwak.util.ReaderIndependentRewriter;
 
 /**
  * An entry in the query cache
@@ -34,9 +38,92 @@ public class QueryCacheEntry {
     /** The metadata from the entry's parent {@link MonitorQuery} */
     public final Map<String,String> metadata;
 
+    /** True if the entry's parent {@link MonitorQuery} was decomposed into more than one entry */
+    public final boolean decomposed;
+
+    // each new timing moves the estimate a quarter of the way towards it
+    private static final int COST_DECAY = 4;
+
+    // running estimate of the time taken to run the query, in ns; -1 until it has been run
+    private volatile long cost = -1;
+
+    private final AtomicInteger timeouts = new AtomicInteger();
+
+    // the query to run against each batch, built on first use
+    private volatile Query preparedQuery;
+
     public QueryCacheEntry(BytesRef hash, Query matchQuery, Map<String, String> metadata) {
+        this(hash, matchQuery, metadata, false);
+    }
+
+    public QueryCacheEntry(BytesRef hash, Query matchQuery, Map<String, String> metadata, boolean decomposed) {
         this.hash = hash;
         this.matchQuery = matchQuery;
         this.metadata = metadata;
+        this.decomposed = decomposed;
+    }
+
+    /**
+     * Get the query to run against each DocumentBatch
+     *
+     * The query is wrapped in a {@link ForceNoBulkScoringQuery}.  If its rewritten form doesn't
+     * depend on the batch, it is rewritten once, and searchers only need to build its Weight.
+     * The prepared query is built on first use, and reused for the life of the entry.
+     *
+     * @return the query to run
+     * @throws IOException on error
+     */
+    public Query getPreparedQuery() throws IOException {
+        Query prepared = preparedQuery;
+        if (prepared == null) {
+            // concurrent callers may each build the query, but will build equal queries
+            Query rewritten = ReaderIndependentRewriter.INSTANCE.rewrite(matchQuery);
+            prepared = rewritten == null
+                    ? new ForceNoBulkScoringQuery(matchQuery)
+                    : new ForceNoBulkScoringQuery(rewritten, true);
+            preparedQuery = prepared;
+        }
+        return prepared;
+    }
+
+    /**
+     * Record the time taken to run this entry's query against a batch
+     *
+     * The entry keeps an exponentially-weighted moving average of its timings.  Concurrent
+     * updates may occasionally lose a timing, which only affects the estimate.
+     *
+     * @param time the time taken in ns
+     */
+    public void recordCost(long time) {
+        long current = cost;
+        cost = current < 0 ? time : current + (time - current) / COST_DECAY;
+    }
+
+    /**
+     * @return the estimated time taken to run this entry's query in ns, or -1 if it has not been run
+     */
+    public long getCost() {
+        return cost;
+    }
+
+    /**
+     * Discard this entry's cost estimate, so that it is rebuilt from the next timing
+     */
+    public void resetCost() {
+        cost = -1;
+    }
+
+    /**
+     * Record that this entry's query exceeded its time budget
+     */
+    public void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * @return the number of times this entry's query has exceeded its time budget
+     */
+    public int getTimeouts() {
+        return timeouts.get();
     }
 }
@@ -4,11 +4,16 @@ import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
@@ -30,13 +35,72 @@ class QueryIndex {
     // NB this is not final because it can be replaced by purgeCache()
 
     // package-private for testing
-    final Map<IndexReader, QueryTermFilter> termFilters = new HashMap<>();
+    final Map<IndexReader, QueryTermFilter> termFilters = new ConcurrentHashMap<>();
+
+    // package-private for testing
+    final Map<Object, QueryTermFilter.LeafTerms> leafTerms = new ConcurrentHashMap<>();
+    private final QueryTermFilter.Format termFilterFormat;
+
+    /* Used to search segments concurrently; null if they are searched serially */
+    private final ExecutorService searchExecutor;
+
+    /* The searcher, query cache and term filter currently used for searches */
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final Object snapshotLock = new Object();
     
-    QueryIndex(IndexWriter indexWriter) throws IOException {
+    /* Used to record changes between deferred commits; null if no log is kept */
+    private final QueryIndexLog log;
+    private final boolean deferCommits;
+    private final int maxUncommittedUpdates;
+    private int uncommittedUpdates = 0;     // guarded by commitLock
+    private boolean replaying = false;      // guarded by commitLock
+
+    /* Hashes of queries deleted or replaced since the last purge, if incremental purges are enabled */
+    private final Set<BytesRef> removedHashes = ConcurrentHashMap.newKeySet();
+    private final boolean trackRemovals;
+    private volatile boolean fullPurgeRequired = false;
+
+    /* Refreshes the searcher in the background; null if it is refreshed after every change */
+    private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+
+    QueryIndex(IndexWriter indexWriter, QueryIndexConfiguration configuration) throws IOException {
         this.writer = indexWriter;
+        this.termFilterFormat = configuration.getTermFilterFormat();
+        this.searchExecutor = configuration.getSearchExecutor();
         this.manager = new SearcherManager(writer, true, true, new TermsHashBuilder());
+        // this must be registered before any ControlledRealTimeReopenThread listener, so that
+        // a new snapshot has been published by the time that waiting threads are released
+        this.manager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() throws IOException {}
+
+            @Override
+            public void afterRefresh(boolean didRefresh) throws IOException {
+                if (didRefresh)
+                    publishSnapshot();
+            }
+        });
+        publishSnapshot();
+        this.deferCommits = configuration.getCommitFrequency() > 0;
+        this.maxUncommittedUpdates = configuration.getMaxUncommittedUpdates();
+        this.log = deferCommits && configuration.useWriteAheadLog() ? new QueryIndexLog(writer.getDirectory()) : null;
+        this.trackRemovals = configuration.getFullPurgeInterval() > 1;
+        long maxStaleness = configuration.getMaxStalenessUnits().toMillis(configuration.getMaxStaleness());
+        if (maxStaleness > 0) {
+            this.reopenThread = new ControlledRealTimeReopenThread<>(writer, manager, maxStaleness / 1000.0, 0);
+            this.reopenThread.setName("luwak-queryindex-refresh");
+            this.reopenThread.setDaemon(true);
+            this.reopenThread.start();
+        }
+        else {
+            this.reopenThread = null;
+        }
     }
-    
+
+    QueryIndex(IndexWriter indexWriter) throws IOException {
+        this(indexWriter, new QueryIndexConfiguration());
+    }
+
     QueryIndex() throws IOException {
         this(Monitor.defaultIndexWriter(new RAMDirectory()));
     }
@@ -44,8 +108,9 @@ class QueryIndex {
     private class TermsHashBuilder extends SearcherFactory {
         @Override
         public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
-            IndexSearcher searcher = super.newSearcher(reader, previousReader);
-            termFilters.put(reader, new QueryTermFilter(reader));
+            IndexSearcher searcher = searchExecutor == null
+                    ? super.newSearcher(reader, previousReader) : new IndexSearcher(reader, searchExecutor);
+            termFilters.put(reader, new QueryTermFilter(reader, termFilterFormat, leafTerms));
             reader.addReaderClosedListener(termFilters::remove);
             return searcher;
         }
@@ -55,29 +120,175 @@ class QueryIndex {
         synchronized (commitLock) {
             purgeLock.readLock().lock();
             try {
-                if (updates != null) {
-                    Set<String> ids = new HashSet<>();
-                    for (Indexable update : updates) {
-                        ids.add(update.id);
-                    }
-                    for (String id : ids) {
-                        writer.deleteDocuments(new Term(Monitor.FIELDS.del, id));
-                    }
-                    for (Indexable update : updates) {
-                        this.queries.put(update.queryCacheEntry.hash, update.queryCacheEntry);
-                        writer.addDocument(update.document);
-                        if (purgeCache != null)
-                            purgeCache.put(update.queryCacheEntry.hash, update.queryCacheEntry);
-                    }
-                }
-                writer.commit();
-                manager.maybeRefresh();
+                addDocuments(updates);
+                afterChange(updates == null ? 1 : updates.size());
             } finally {
                 purgeLock.readLock().unlock();
             }
         }
     }
 
+    /**
+     * Add a set of queries to the index, replacing any existing queries with the same ids
+     * @param queries the queries, to be recorded in the write-ahead log
+     * @param updates the decomposed queries to index
+     * @return the generation at which the queries will be visible to searches
+     * @throws IOException on IO errors
+     */
+    long update(List<MonitorQuery> queries, List<Indexable> updates) throws IOException {
+        synchronized (commitLock) {
+            if (logChanges() && queries.isEmpty() == false)
+                log.logUpdate(queries);
+            purgeLock.readLock().lock();
+            try {
+                addDocuments(updates);
+                return afterChange(queries.size());
+            } finally {
+                purgeLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Remove queries from the index
+     * @param ids the ids of the queries to remove
+     * @return the generation at which the deletions will be visible to searches
+     * @throws IOException on IO errors
+     */
+    long delete(List<String> ids) throws IOException {
+        synchronized (commitLock) {
+            if (logChanges())
+                log.logDelete(ids);
+            List<BytesRef> removed = findHashes(ids);
+            for (String id : ids) {
+                writer.deleteDocuments(new Term(Monitor.FIELDS.del, id));
+            }
+            removedHashes.addAll(removed);
+            return afterChange(ids.size());
+        }
+    }
+
+    /**
+     * Remove all queries from the index
+     * @return the generation at which the index will be seen as empty by searches
+     * @throws IOException on IO errors
+     */
+    long clear() throws IOException {
+        synchronized (commitLock) {
+            if (logChanges())
+                log.logClear();
+            writer.deleteDocuments(new MatchAllDocsQuery());
+            if (trackRemovals)
+                fullPurgeRequired = true;
+            return afterChange(1);
+        }
+    }
+
+    /**
+     * Durably commit all changes made to the index, and remove them from the write-ahead log
+     * @throws IOException on IO errors
+     */
+    void commit() throws IOException {
+        synchronized (commitLock) {
+            long logGeneration = log == null ? 0 : log.getGeneration();
+            writer.commit();
+            uncommittedUpdates = 0;
+            if (log != null)
+                log.truncate(logGeneration);
+        }
+    }
+
+    /**
+     * Apply any changes recorded in the write-ahead log, and then commit them
+     * @param replayer a Replayer that will reapply each logged change
+     * @throws IOException on IO errors
+     */
+    void replayLog(QueryIndexLog.Replayer replayer) throws IOException {
+        if (log == null)
+            return;
+        synchronized (commitLock) {
+            // replayed changes are already in the log, so they must not be logged again
+            replaying = true;
+            try {
+                log.replay(replayer);
+            }
+            finally {
+                replaying = false;
+            }
+            commit();
+        }
+    }
+
+    private boolean logChanges() {
+        return deferCommits && log != null && replaying == false;
+    }
+
+    private void addDocuments(List<Indexable> updates) throws IOException {
+        if (updates == null)
+            return;
+        Set<String> ids = new HashSet<>();
+        for (Indexable update : updates) {
+            ids.add(update.id);
+        }
+        List<BytesRef> removed = findHashes(ids);
+        for (String id : ids) {
+            writer.deleteDocuments(new Term(Monitor.FIELDS.del, id));
+        }
+        for (Indexable update : updates) {
+            this.queries.put(update.queryCacheEntry.hash, update.queryCacheEntry);
+            writer.addDocument(update.document);
+            if (purgeCache != null)
+                purgeCache.put(update.queryCacheEntry.hash, update.queryCacheEntry);
+        }
+        removedHashes.addAll(removed);
+    }
+
+    // Find the hashes of the queries currently indexed under a set of ids, so that they can
+    // be evicted from the query cache by an incremental purge once the ids have been deleted.
+    // Called under the commitLock, so once any earlier changes have been made visible, the
+    // published snapshot holds every query that the ids currently refer to.
+    private List<BytesRef> findHashes(Collection<String> ids) throws IOException {
+        List<BytesRef> hashes = new ArrayList<>();
+        if (trackRemovals == false || ids.isEmpty())
+            return hashes;
+        if (manager.isSearcherCurrent() == false)
+            manager.maybeRefreshBlocking();
+        List<BytesRef> terms = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            terms.add(new BytesRef(id));
+        }
+        search(new TermInSetQuery(Monitor.FIELDS.del, terms),
+                (queryId, query, dataValues) -> hashes.add(BytesRef.deepCopyOf(dataValues.hash.get(dataValues.doc))));
+        return hashes;
+    }
+
+    private long afterChange(int changes) throws IOException {
+        uncommittedUpdates += changes;
+        if (deferCommits == false || uncommittedUpdates >= maxUncommittedUpdates)
+            commit();
+        if (reopenThread == null)
+            manager.maybeRefresh();
+        return writer.getMaxCompletedSequenceNumber();
+    }
+
+    /**
+     * Wait until changes up to a given generation are visible to searches
+     * @param generation the generation to wait for
+     * @param timeout the maximum time to wait, or 0 to wait indefinitely
+     * @param units the units of the timeout
+     * @return true if the generation is visible, false if the timeout expired first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean waitForGeneration(long generation, long timeout, TimeUnit units) throws InterruptedException {
+        if (reopenThread == null)
+            return true;
+        if (timeout <= 0) {
+            reopenThread.waitForGeneration(generation);
+            return true;
+        }
+        return reopenThread.waitForGeneration(generation, (int) Math.max(1, Math.min(Integer.MAX_VALUE, units.toMillis(timeout))));
+    }
+
     interface QueryBuilder {
         Query buildQuery(QueryTermFilter termFilter) throws IOException;
     }
@@ -92,30 +303,82 @@ class QueryIndex {
     }
 
     long search(QueryBuilder queryBuilder, QueryCollector matcher) throws IOException {
-        IndexSearcher searcher = null;
+        Snapshot current = acquireSnapshot();
         try {
-            Map<BytesRef, QueryCacheEntry> queries;
-
-            purgeLock.readLock().lock();
-            try {
-                searcher = manager.acquire();
-                queries = this.queries;
-            }
-            finally {
-                purgeLock.readLock().unlock();
-            }
-
-            MonitorQueryCollector collector = new MonitorQueryCollector(queries, matcher);
             long buildTime = System.nanoTime();
-            Query query = queryBuilder.buildQuery(termFilters.get(searcher.getIndexReader()));
+            Query query = queryBuilder.buildQuery(current.termFilter);
             buildTime = System.nanoTime() - buildTime;
-            searcher.search(query, collector);
+            if (searchExecutor == null || current.searcher.getIndexReader().leaves().size() < 2) {
+                current.searcher.search(query, new MonitorQueryCollector(current.queries, matcher));
+            }
+            else {
+                QueryCollector target = matcher.isThreadSafe() ? matcher : new SynchronizedQueryCollector(matcher);
+                current.searcher.search(query, new MonitorQueryCollectorManager(current.queries, target));
+            }
             return buildTime;
         }
         finally {
-            if (searcher != null) {
-                manager.release(searcher);
+            current.decRef();
+        }
+    }
+
+    private Snapshot acquireSnapshot() {
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (current == null)
+                throw new AlreadyClosedException("QueryIndex is closed");
+            if (current.tryIncRef())
+                return current;
+            // the snapshot was replaced and released after we read it, so try again
+        }
+    }
+
+    /*
+        Publish a new snapshot using the latest searcher and query cache.  Writers serialize
+        on the snapshotLock, so that a snapshot built from stale values can never replace a
+        newer one; searches only ever read the AtomicReference.
+     */
+    private void publishSnapshot() throws IOException {
+        synchronized (snapshotLock) {
+            IndexSearcher searcher = manager.acquire();
+            Snapshot previous = snapshot.getAndSet(
+                    new Snapshot(searcher, queries, termFilters.get(searcher.getIndexReader())));
+            if (previous != null)
+                previous.decRef();
+        }
+    }
+
+    /**
+     * An immutable view of the searcher and query cache, reference-counted so that the
+     * searcher is released by the last search that uses it
+     */
+    private final class Snapshot {
+
+        final IndexSearcher searcher;
+        final Map<BytesRef, QueryCacheEntry> queries;
+        final QueryTermFilter termFilter;
+
+        // starts at 1 for the reference held by the snapshot AtomicReference
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        Snapshot(IndexSearcher searcher, Map<BytesRef, QueryCacheEntry> queries, QueryTermFilter termFilter) {
+            this.searcher = searcher;
+            this.queries = queries;
+            this.termFilter = termFilter;
+        }
+
+        boolean tryIncRef() {
+            int count;
+            while ((count = refCount.get()) > 0) {
+                if (refCount.compareAndSet(count, count + 1))
+                    return true;
             }
+            return false;
+        }
+
+        void decRef() throws IOException {
+            if (refCount.decrementAndGet() == 0)
+                manager.release(searcher);
         }
     }
     
@@ -147,6 +410,10 @@ class QueryIndex {
             The purge takes the write lock when creating the update log, and then when swapping out
             the old query cache.  Within the second write lock guard, the contents of the update log
             are added to the new query cache, and the update log itself is removed.
+
+            Searches never take the lock.  Once the new query cache has been swapped in, it is
+            published together with the current searcher as a new Snapshot, and the old cache is
+            released once the last search using the previous Snapshot has finished.
          */
 
         final ConcurrentMap<BytesRef, QueryCacheEntry> newCache = new ConcurrentHashMap<>();
@@ -154,11 +421,17 @@ class QueryIndex {
         purgeLock.writeLock().lock();
         try {
             purgeCache = new ConcurrentHashMap<>();
+            // anything removed before this point will be missing from the scan
+            removedHashes.clear();
+            fullPurgeRequired = false;
         }
         finally {
             purgeLock.writeLock().unlock();
         }
         
+        // make sure that the scan sees every query added before the purgeCache was created,
+        // as the searcher may not have been refreshed yet
+        manager.maybeRefreshBlocking();
         populator.populateCacheWithIndex(newCache);
 
         purgeLock.writeLock().lock();
@@ -170,15 +443,68 @@ class QueryIndex {
         finally {
             purgeLock.writeLock().unlock();
         }
+        publishSnapshot();
     }
     
     
+    /**
+     * Remove queries that have been deleted or replaced since the last purge from the query cache,
+     * without scanning the whole index.
+     *
+     * Queries are only removed if no other query in the index shares their hash.  Writers are
+     * blocked while the check runs, but searches are not.  An incremental purge is not possible
+     * after the index has been cleared, if most of the cache would be removed, or if the index
+     * contains queries written by a version of luwak that did not index their hashes; in these
+     * cases, a full purge should be run instead.
+     *
+     * @return false if a full purge is required
+     * @throws IOException on IO errors
+     */
+    synchronized boolean purgeRemovedQueries() throws IOException {
+        synchronized (commitLock) {
+            if (fullPurgeRequired || removedHashes.size() > queries.size() / 2)
+                return false;
+            manager.maybeRefreshBlocking();
+            Snapshot current = acquireSnapshot();
+            try {
+                IndexSearcher searcher = current.searcher;
+                for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                    Terms terms = ctx.reader().terms(Monitor.FIELDS.hash);
+                    if (terms == null || terms.getDocCount() != ctx.reader().maxDoc())
+                        return false;
+                }
+                for (BytesRef hash : removedHashes) {
+                    if (searcher.count(new TermQuery(new Term(Monitor.FIELDS.hash, hash))) == 0)
+                        queries.remove(hash);
+                }
+                removedHashes.clear();
+                return true;
+            }
+            finally {
+                current.decRef();
+            }
+        }
+    }
+
     // ---------------------------------------------
     //  Proxy trivial operations...
     // ---------------------------------------------
 
+    void close() throws IOException {
+        try {
+            if (writer.isOpen())
+                commit();
+        }
+        finally {
+            closeWhileHandlingException();
+        }
+    }
+
     void closeWhileHandlingException() throws IOException {
-        IOUtils.closeWhileHandlingException(manager, writer, writer.getDirectory());
+        Snapshot current = snapshot.getAndSet(null);
+        if (current != null)
+            IOUtils.closeWhileHandlingException(current::decRef);
+        IOUtils.closeWhileHandlingException(reopenThread, manager, writer, writer.getDirectory());
     }
 
     int numDocs() {
@@ -205,6 +531,47 @@ class QueryIndex {
 
         void matchQuery(String id, QueryCacheEntry query, DataValues dataValues) throws IOException;
 
+        /**
+         * @return true if no more queries need to be collected
+         */
+        default boolean isTerminated() {
+            return false;
+        }
+
+        /**
+         * @return true if {@link #matchQuery} may be called from several segment searches at once
+         */
+        default boolean isThreadSafe() {
+            return false;
+        }
+
+    }
+
+    /* Passes candidates from concurrent segment searches to a QueryCollector one at a time */
+    private static final class SynchronizedQueryCollector implements QueryCollector {
+
+        private final QueryCollector in;
+
+        SynchronizedQueryCollector(QueryCollector in) {
+            this.in = in;
+        }
+
+        @Override
+        public void matchQuery(String id, QueryCacheEntry query, DataValues dataValues) throws IOException {
+            synchronized (in) {
+                in.matchQuery(id, query, dataValues);
+            }
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return in.isTerminated();
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
+        }
     }
 
     // ---------------------------------------------
@@ -245,10 +612,16 @@ class QueryIndex {
             QueryCacheEntry query = queries.get(hash);
             dataValues.doc = doc;
             matcher.matchQuery(id.utf8ToString(), query, dataValues);
+            if (matcher.isTerminated())
+                throw new CollectionTerminatedException();
         }
 
         @Override
         public void doSetNextReader(LeafReaderContext context) throws IOException {
+            // IndexSearcher only skips the current segment on a CollectionTerminatedException,
+            // so we need to check again here to avoid collecting any further segments
+            if (matcher.isTerminated())
+                throw new CollectionTerminatedException();
             this.dataValues.hash = context.reader().getBinaryDocValues(Monitor.FIELDS.hash);
             this.dataValues.id = context.reader().getSortedDocValues(Monitor.FIELDS.id);
             this.dataValues.mq = context.reader().getBinaryDocValues(Monitor.FIELDS.mq);
@@ -260,4 +633,29 @@ class QueryIndex {
         }
 
     }
+
+    /**
+     * Creates a MonitorQueryCollector for each segment searched concurrently.  The collectors
+     * pass their candidates straight to the QueryCollector, so there is nothing to reduce.
+     */
+    static final class MonitorQueryCollectorManager implements CollectorManager<MonitorQueryCollector, Void> {
+
+        private final Map<BytesRef, QueryCacheEntry> queries;
+        private final QueryCollector matcher;
+
+        MonitorQueryCollectorManager(Map<BytesRef, QueryCacheEntry> queries, QueryCollector matcher) {
+            this.queries = queries;
+            this.matcher = matcher;
+        }
+
+        @Override
+        public MonitorQueryCollector newCollector() throws IOException {
+            return new MonitorQueryCollector(queries, matcher);
+        }
+
+        @Override
+        public Void reduce(Collection<MonitorQueryCollector> collectors) throws IOException {
+            return null;
+        }
+    }
 }
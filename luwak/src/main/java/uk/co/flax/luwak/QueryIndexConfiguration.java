@@ -16,6 +16,7 @@ package uk.co.flax.luwak;
  *   limitations under the License.
  */
 
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -26,8 +27,18 @@ public class QueryIndexConfiguration {
     private int queryUpdateBufferSize = 5000;
     private long purgeFrequency = 5;
     private TimeUnit purgeFrequencyUnits = TimeUnit.MINUTES;
+    private int fullPurgeInterval = 1;
+    private PurgeScheduler purgeScheduler = null;
+    private QueryTermFilter.Format termFilterFormat = QueryTermFilter.Format.HASH;
     private QueryDecomposer queryDecomposer = new QueryDecomposer();
     private boolean storeQueries = true;
+    private long commitFrequency = 0;
+    private TimeUnit commitFrequencyUnits = TimeUnit.SECONDS;
+    private int maxUncommittedUpdates = 10000;
+    private boolean writeAheadLog = true;
+    private long maxStaleness = 0;
+    private TimeUnit maxStalenessUnits = TimeUnit.MILLISECONDS;
+    private ExecutorService searchExecutor = null;
 
     /**
      * Set the QueryDecomposer to be used by the Monitor
@@ -72,6 +83,73 @@ public class QueryIndexConfiguration {
         return purgeFrequencyUnits;
     }
 
+    /**
+     * Run the Monitor's querycache purges and deferred commits on a shared {@link PurgeScheduler}
+     *
+     * By default, each Monitor creates its own single-threaded scheduler.  A shared scheduler is
+     * not closed when the Monitor is closed.
+     *
+     * @param scheduler the PurgeScheduler to use
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setPurgeScheduler(PurgeScheduler scheduler) {
+        this.purgeScheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * @return the shared PurgeScheduler used by the Monitor, or null if it creates its own
+     */
+    public PurgeScheduler getPurgeScheduler() {
+        return purgeScheduler;
+    }
+
+    /**
+     * Set how often a purge of the Monitor's querycache should scan the whole queryindex
+     *
+     * With an interval of n, every nth scheduled purge rebuilds the querycache from a scan
+     * of the queryindex, and the others only evict queries that have been deleted or replaced
+     * since the previous purge.  The default is 1, so that every purge is a full scan.
+     *
+     * @param interval the number of purges between full scans
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setFullPurgeInterval(int interval) {
+        this.fullPurgeInterval = interval;
+        return this;
+    }
+
+    /**
+     * @return the number of purges between full scans of the queryindex
+     */
+    public int getFullPurgeInterval() {
+        return fullPurgeInterval;
+    }
+
+    /**
+     * Set how the terms of the queryindex are held in memory for presearcher filtering
+     *
+     * The default, {@link QueryTermFilter.Format#HASH}, gives the fastest lookups.  For large
+     * queryindexes, {@link QueryTermFilter.Format#SORTED_ARRAY} and {@link QueryTermFilter.Format#FST}
+     * use much less heap, in exchange for slower presearcher query building.
+     * {@link QueryTermFilter.Format#TERMS_ENUM} holds no copy of the terms at all, and
+     * instead intersects document terms with the queryindex's own terms dictionary.
+     *
+     * @param format the format to use
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setTermFilterFormat(QueryTermFilter.Format format) {
+        this.termFilterFormat = format;
+        return this;
+    }
+
+    /**
+     * @return the format used to hold the terms of the queryindex in memory
+     */
+    public QueryTermFilter.Format getTermFilterFormat() {
+        return termFilterFormat;
+    }
+
     /**
      * Set how many queries will be buffered in memory before being committed to the queryindex
      * @param size how many queries will be buffered in memory before being committed to the queryindex
@@ -110,4 +188,152 @@ public class QueryIndexConfiguration {
         return storeQueries;
     }
 
+    /**
+     * Defer durable commits of the queryindex
+     *
+     * By default, the queryindex is committed after every update or delete, which forces
+     * an fsync of the index files.  If a commit frequency is set, then updates are made
+     * visible to matching by refreshing the queryindex searcher, and the queryindex is only
+     * committed at the given frequency, or once {@link #setMaxUncommittedUpdates(int)} changes
+     * have been made since the last commit, whichever is sooner.
+     *
+     * @param frequency the frequency value, or 0 to commit after every change
+     * @param units     the frequency units
+     * @return the current configuration
+     *
+     * @see #useWriteAheadLog(boolean)
+     */
+    public QueryIndexConfiguration setCommitFrequency(long frequency, TimeUnit units) {
+        this.commitFrequency = frequency;
+        this.commitFrequencyUnits = units;
+        return this;
+    }
+
+    /**
+     * @return the value of the queryindex commit frequency, or 0 if the queryindex is
+     *         committed after every change
+     */
+    public long getCommitFrequency() {
+        return commitFrequency;
+    }
+
+    /**
+     * @return the units of the queryindex commit frequency
+     */
+    public TimeUnit getCommitFrequencyUnits() {
+        return commitFrequencyUnits;
+    }
+
+    /**
+     * Set how many queries may be added or deleted before the queryindex is committed,
+     * if commits are deferred
+     * @param maxUpdates the maximum number of uncommitted changes
+     * @return the current configuration
+     *
+     * @see #setCommitFrequency(long, TimeUnit)
+     */
+    public QueryIndexConfiguration setMaxUncommittedUpdates(int maxUpdates) {
+        this.maxUncommittedUpdates = maxUpdates;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of uncommitted changes to the queryindex
+     */
+    public int getMaxUncommittedUpdates() {
+        return maxUncommittedUpdates;
+    }
+
+    /**
+     * Set whether or not changes should be recorded in a write-ahead log while commits
+     * are deferred
+     *
+     * The log is stored in the queryindex's Directory, and is replayed when a Monitor
+     * is opened, so that changes that had not been committed when the process stopped
+     * are not lost.  The default is {@code true}.  The log is not created if the queryindex
+     * is committed after every change, so any log left by an earlier Monitor that deferred
+     * its commits is only replayed when commits are deferred again.
+     *
+     * @param writeAheadLog whether or not to use a write-ahead log
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration useWriteAheadLog(boolean writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+        return this;
+    }
+
+    /**
+     * @return whether or not changes are recorded in a write-ahead log while commits are deferred
+     */
+    public boolean useWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * Refresh the queryindex searcher in the background
+     *
+     * By default, the queryindex searcher is refreshed by the thread making an update or delete,
+     * so that the changes are visible to {@link Monitor#match} as soon as the call returns.  If
+     * a maximum staleness is set, then a background thread refreshes the searcher at least this
+     * often, and callers can choose whether or not to wait for their changes to become visible.
+     *
+     * @param maxStaleness the maximum time before changes become visible, or 0 to refresh after
+     *                     every change
+     * @param units the units of the maximum staleness
+     * @return the current configuration
+     *
+     * @see Monitor#updateAsync(Iterable)
+     */
+    public QueryIndexConfiguration setMaxStaleness(long maxStaleness, TimeUnit units) {
+        this.maxStaleness = maxStaleness;
+        this.maxStalenessUnits = units;
+        return this;
+    }
+
+    /**
+     * @return the maximum time before changes to the queryindex become visible, or 0 if the
+     *         queryindex searcher is refreshed after every change
+     */
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * @return the units of the maximum staleness
+     */
+    public TimeUnit getMaxStalenessUnits() {
+        return maxStalenessUnits;
+    }
+
+    /**
+     * Search the segments of the queryindex concurrently
+     *
+     * By default, the queryindex is searched on the thread calling {@link Monitor#match}, one
+     * segment after another.  If a search executor is set, each segment is searched on its own
+     * thread, and the candidate queries it selects are passed straight to the
+     * {@link CandidateMatcher}.  Matchers that return true from
+     * {@link CandidateMatcher#acceptsConcurrentCandidates()}, such as
+     * {@link uk.co.flax.luwak.matchers.ParallelMatcher}, receive candidates from all segments at
+     * once; other matchers receive them one at a time.
+     *
+     * The calling thread waits for the segment searches to finish, so the executor should not
+     * be one whose threads may all be occupied by matcher workers.  The executor is not shut
+     * down when the Monitor is closed.
+     *
+     * @param executor the executor to search segments on, or null to search them serially
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setSearchExecutor(ExecutorService executor) {
+        this.searchExecutor = executor;
+        return this;
+    }
+
+    /**
+     * @return the executor used to search queryindex segments concurrently, or null if they are
+     *         searched serially
+     */
+    public ExecutorService getSearchExecutor() {
+        return searchExecutor;
+    }
+
 }
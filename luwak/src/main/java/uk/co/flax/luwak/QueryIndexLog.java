@@ -0,0 +1,216 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * A write-ahead log of changes made to a query index since its last commit
+ *
+ * Each change is written to its own file in the query index's Directory, and synced
+ * before it is applied to the IndexWriter.  Once the IndexWriter has been committed,
+ * all log files up to and including the committed generation are removed.  On startup,
+ * any remaining log files are replayed in generation order.
+ */
+class QueryIndexLog {
+
+    static final String FILE_PREFIX = "luwak_wal_";
+
+    private static final String CODEC_NAME = "LuwakQueryIndexLog";
+    private static final int VERSION = 0;
+
+    private static final byte UPDATE = 0;
+    private static final byte DELETE = 1;
+    private static final byte CLEAR = 2;
+
+    private final Directory directory;
+
+    private long generation;
+
+    QueryIndexLog(Directory directory) throws IOException {
+        this.directory = directory;
+        long maxGeneration = 0;
+        for (long gen : generations()) {
+            maxGeneration = Math.max(gen, maxGeneration);
+        }
+        this.generation = maxGeneration;
+    }
+
+    /**
+     * Receives the changes recorded in the log
+     */
+    interface Replayer {
+
+        void update(List<MonitorQuery> queries) throws IOException;
+
+        void delete(List<String> ids) throws IOException;
+
+        void clear() throws IOException;
+
+    }
+
+    /**
+     * @return the generation of the most recently written log entry
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    synchronized void logUpdate(List<MonitorQuery> queries) throws IOException {
+        write(UPDATE, out -> {
+            out.writeVInt(queries.size());
+            for (MonitorQuery query : queries) {
+                BytesRef bytes = MonitorQuery.serialize(query);
+                out.writeVInt(bytes.length);
+                out.writeBytes(bytes.bytes, bytes.offset, bytes.length);
+            }
+        });
+    }
+
+    synchronized void logDelete(List<String> ids) throws IOException {
+        write(DELETE, out -> {
+            out.writeVInt(ids.size());
+            for (String id : ids) {
+                out.writeString(id);
+            }
+        });
+    }
+
+    synchronized void logClear() throws IOException {
+        write(CLEAR, out -> {});
+    }
+
+    /**
+     * Remove all log entries up to and including a given generation
+     * @param upTo the generation to truncate to
+     * @throws IOException on IO errors
+     */
+    synchronized void truncate(long upTo) throws IOException {
+        for (long gen : generations()) {
+            if (gen <= upTo)
+                directory.deleteFile(fileName(gen));
+        }
+    }
+
+    /**
+     * Pass all entries in the log to a {@link Replayer}, in the order in which they were written
+     *
+     * An incomplete final entry, left by a crash while it was being written, is ignored.  As the
+     * change it records was never applied to the query index, nothing is lost.
+     *
+     * @param replayer the Replayer
+     * @throws IOException on IO errors
+     */
+    synchronized void replay(Replayer replayer) throws IOException {
+        List<Long> generations = generations();
+        Collections.sort(generations);
+        for (int i = 0; i < generations.size(); i++) {
+            try {
+                replay(fileName(generations.get(i)), replayer);
+            }
+            catch (CorruptIndexException | EOFException e) {
+                if (i != generations.size() - 1)
+                    throw e;
+            }
+        }
+    }
+
+    private void replay(String file, Replayer replayer) throws IOException {
+        try (ChecksumIndexInput in = directory.openChecksumInput(file, IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEC_NAME, VERSION, VERSION);
+            byte op = in.readByte();
+            switch (op) {
+                case UPDATE:
+                    int count = in.readVInt();
+                    List<MonitorQuery> queries = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        byte[] bytes = new byte[in.readVInt()];
+                        in.readBytes(bytes, 0, bytes.length);
+                        queries.add(MonitorQuery.deserialize(new BytesRef(bytes)));
+                    }
+                    CodecUtil.checkFooter(in);
+                    replayer.update(queries);
+                    break;
+                case DELETE:
+                    int idCount = in.readVInt();
+                    List<String> ids = new ArrayList<>(idCount);
+                    for (int i = 0; i < idCount; i++) {
+                        ids.add(in.readString());
+                    }
+                    CodecUtil.checkFooter(in);
+                    replayer.delete(ids);
+                    break;
+                case CLEAR:
+                    CodecUtil.checkFooter(in);
+                    replayer.clear();
+                    break;
+                default:
+                    throw new CorruptIndexException("Unknown log operation " + op, in);
+            }
+        }
+    }
+
+    private interface EntryWriter {
+        void write(IndexOutput out) throws IOException;
+    }
+
+    private void write(byte op, EntryWriter entryWriter) throws IOException {
+        String file = fileName(++generation);
+        boolean success = false;
+        try {
+            try (IndexOutput out = directory.createOutput(file, IOContext.DEFAULT)) {
+                CodecUtil.writeHeader(out, CODEC_NAME, VERSION);
+                out.writeByte(op);
+                entryWriter.write(out);
+                CodecUtil.writeFooter(out);
+            }
+            directory.sync(Collections.singleton(file));
+            directory.syncMetaData();
+            success = true;
+        }
+        finally {
+            // the change will not be applied, so it must not be replayed either
+            if (success == false)
+                IOUtils.deleteFilesIgnoringExceptions(directory, file);
+        }
+    }
+
+    private List<Long> generations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        for (String file : directory.listAll()) {
+            if (file.startsWith(FILE_PREFIX))
+                generations.add(Long.parseLong(file.substring(FILE_PREFIX.length())));
+        }
+        return generations;
+    }
+
+    private static String fileName(long generation) {
+        return FILE_PREFIX + generation;
+    }
+
+}
@@ -17,12 +17,15 @@ package uk.co.flax.luwak;
  */
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.index.*;
-import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.*;
+import org.apache.lucene.util.fst.*;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.lucene.util.packed.PackedLongValues;
+import uk.co.flax.luwak.analysis.TermSet;
 
 /**
  * Class for recording terms stored in the query index.
@@ -30,42 +33,509 @@ import org.apache.lucene.util.BytesRefHash;
  * An instance of QueryTermFilter is passed to {@link Presearcher#buildQuery(LeafReader, QueryTermFilter)},
  * and can be used to restrict the presearcher's disjunction query to terms in the index.
  *
+ * Terms are recorded separately for each segment of the index, so that segments that are
+ * unchanged between refreshes of the query index can share their terms.  How the terms are
+ * stored in memory is controlled by a {@link Format}; with {@link Format#TERMS_ENUM}, no
+ * copy of the terms is made, and lookups instead seek the query index's own TermsEnums.
+ *
  * @see uk.co.flax.luwak.analysis.BytesRefFilteredTokenFilter
  */
 public class QueryTermFilter {
 
-    private final Map<String, BytesRefHash> termsHash = new HashMap<>();
+    /**
+     * How a QueryTermFilter stores its terms
+     */
+    public enum Format {
+
+        /**
+         * A BytesRefHash of terms: the fastest lookups, and the most memory.  Lookups in
+         * the same segment are serialized, as BytesRefHash is not safe for concurrent reads
+         */
+        HASH,
+
+        /** A sorted array of terms, searched with a binary search */
+        SORTED_ARRAY,
+
+        /** A Lucene FST: the least memory, and the slowest lookups */
+        FST,
+
+        /**
+         * No copy of the terms: lookups seek the TermsEnum of each segment of the query
+         * index.  Lookups made in sorted order, as presearchers do, are intersected with
+         * the index terms as a sorted merge, and skip any seeks that cannot find a term.
+         */
+        TERMS_ENUM
+
+    }
+
+    private final List<LeafTerms> leaves = new ArrayList<>();
+
+    // the segments to seek, if terms are not copied
+    private final List<LeafReader> seekableLeaves = new ArrayList<>();
+
+    // merged terms returned by getTerms(), built on demand
+    private final Map<String, BytesRefHash> mergedTerms = new ConcurrentHashMap<>();
 
     /**
-     * Create a QueryTermFilter for an IndexReader
+     * Create a QueryTermFilter for an IndexReader, storing its terms in hash tables
      * @param reader the {@link IndexReader}
      * @throws IOException on error
      */
     public QueryTermFilter(IndexReader reader) throws IOException {
-        Fields mf = MultiFields.getFields(reader);
-        for (String field : mf) {
-            BytesRefHash terms = new BytesRefHash();
-            Terms t = mf.terms(field);
-            if (t != null) {
-                TermsEnum te = t.iterator();
-                BytesRef term;
-                while ((term = te.next()) != null) {
-                    terms.add(term);
-                }
+        this(reader, Format.HASH);
+    }
+
+    /**
+     * Create a QueryTermFilter for an IndexReader
+     * @param reader the {@link IndexReader}
+     * @param format how to store the terms
+     * @throws IOException on error
+     */
+    public QueryTermFilter(IndexReader reader, Format format) throws IOException {
+        for (LeafReaderContext ctx : reader.leaves()) {
+            if (format == Format.TERMS_ENUM)
+                seekableLeaves.add(ctx.reader());
+            else
+                leaves.add(new LeafTerms(ctx.reader(), format));
+        }
+    }
+
+    /**
+     * Create a QueryTermFilter for an IndexReader, reusing the terms of any segments
+     * already in a cache
+     * @param reader the {@link IndexReader}
+     * @param format how to store the terms
+     * @param cache  a map of segment core cache keys to their terms
+     * @throws IOException on error
+     */
+    QueryTermFilter(IndexReader reader, Format format, Map<Object, LeafTerms> cache) throws IOException {
+        for (LeafReaderContext ctx : reader.leaves()) {
+            LeafReader leaf = ctx.reader();
+            if (format == Format.TERMS_ENUM) {
+                // a segment's reader may be closed while its core is still open, so
+                // readers can't be shared between filters
+                seekableLeaves.add(leaf);
+                continue;
+            }
+            Object key = leaf.getCoreCacheKey();
+            LeafTerms terms = cache.get(key);
+            if (terms == null) {
+                terms = new LeafTerms(leaf, format);
+                cache.put(key, terms);
+                leaf.addCoreClosedListener(cache::remove);
             }
-            termsHash.put(field, terms);
+            leaves.add(terms);
         }
+    }
 
+    /**
+     * Get a TermSet containing all terms for a particular field
+     *
+     * The returned TermSet is safe to use from multiple threads, unless the filter's
+     * format is {@link Format#TERMS_ENUM}, in which case each call returns a new TermSet
+     * that should only be used by a single thread.  The TermSet must not be used once
+     * the query index reader has been closed.
+     *
+     * @param field the field
+     * @return a {@link TermSet} containing all terms for the specified field
+     */
+    public TermSet getTermSet(String field) {
+        if (seekableLeaves.isEmpty() == false)
+            return seekingTermSet(field);
+        List<TermSet> sets = new ArrayList<>(leaves.size());
+        for (LeafTerms leaf : leaves) {
+            TermSet terms = leaf.fields.get(field);
+            if (terms != null)
+                sets.add(terms);
+        }
+        if (sets.size() == 0)
+            return TermSet.EMPTY;
+        if (sets.size() == 1)
+            return sets.get(0);
+        return term -> {
+            for (TermSet set : sets) {
+                if (set.contains(term))
+                    return true;
+            }
+            return false;
+        };
     }
 
     /**
      * Get a BytesRefHash containing all terms for a particular field
+     *
+     * The terms of every segment are merged into a single BytesRefHash on the first call
+     * for each field, which is then kept for the life of the filter.
+     *
      * @param field the field
      * @return a {@link BytesRefHash} containing all terms for the specified field
+     * @deprecated use {@link #getTermSet(String)}, which does not copy the terms
      */
+    @Deprecated
     public BytesRefHash getTerms(String field) {
-        if (termsHash.containsKey(field))
-            return termsHash.get(field);
-        return new BytesRefHash();
+        return mergedTerms.computeIfAbsent(field, this::mergeTerms);
+    }
+
+    private BytesRefHash mergeTerms(String field) {
+        BytesRefHash merged = new BytesRefHash();
+        for (TermsEnum te : termsEnums(field)) {
+            try {
+                BytesRef term;
+                while ((term = te.next()) != null) {
+                    merged.add(term);
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        for (LeafTerms leaf : leaves) {
+            FieldTerms terms = leaf.fields.get(field);
+            if (terms != null) {
+                try {
+                    BytesRefIterator it = terms.iterator();
+                    BytesRef term;
+                    while ((term = it.next()) != null) {
+                        merged.add(term);
+                    }
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return the approximate heap usage of the recorded terms, in bytes
+     */
+    public long ramBytesUsed() {
+        long bytes = 0;
+        for (LeafTerms leaf : leaves) {
+            for (FieldTerms terms : leaf.fields.values()) {
+                bytes += terms.ramBytesUsed();
+            }
+        }
+        return bytes;
+    }
+
+    private List<TermsEnum> termsEnums(String field) {
+        List<TermsEnum> enums = new ArrayList<>(seekableLeaves.size());
+        if (Monitor.FIELDS.hash.equals(field))
+            return enums;
+        try {
+            for (LeafReader leaf : seekableLeaves) {
+                Terms terms = leaf.terms(field);
+                if (terms != null)
+                    enums.add(terms.iterator());
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return enums;
+    }
+
+    private TermSet seekingTermSet(String field) {
+        List<TermsEnum> enums = termsEnums(field);
+        if (enums.size() == 0)
+            return TermSet.EMPTY;
+        return new SeekingTermSet(enums);
+    }
+
+    /**
+     * Looks up terms by seeking a TermsEnum for each segment
+     *
+     * After a seek, each segment records the smallest term that is greater than or equal to the
+     * target.  No terms lie between the target and that ceiling, so a later lookup of a greater
+     * term that still falls below the ceiling can be answered without seeking again.
+     */
+    private static final class SeekingTermSet implements TermSet {
+
+        private final TermsEnum[] enums;
+        private final BytesRef[] ceilings;          // null if a segment has no more terms
+        private final BytesRefBuilder lastTarget = new BytesRefBuilder();
+        private boolean positioned = false;
+
+        SeekingTermSet(List<TermsEnum> enums) {
+            this.enums = enums.toArray(new TermsEnum[enums.size()]);
+            this.ceilings = new BytesRef[this.enums.length];
+        }
+
+        @Override
+        public boolean contains(BytesRef term) {
+            boolean ascending = positioned && term.compareTo(lastTarget.get()) > 0;
+            boolean found = false;
+            try {
+                for (int i = 0; i < enums.length; i++) {
+                    if (ascending) {
+                        if (ceilings[i] == null)
+                            continue;
+                        int cmp = term.compareTo(ceilings[i]);
+                        if (cmp < 0)
+                            continue;
+                        if (cmp == 0) {
+                            found = true;
+                            continue;
+                        }
+                    }
+                    // each segment is visited on every lookup, so that all their ceilings
+                    // stay consistent with the last target
+                    TermsEnum.SeekStatus status = enums[i].seekCeil(term);
+                    if (status == TermsEnum.SeekStatus.END) {
+                        ceilings[i] = null;
+                    }
+                    else {
+                        ceilings[i] = enums[i].term();
+                        if (status == TermsEnum.SeekStatus.FOUND)
+                            found = true;
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            lastTarget.copyBytes(term);
+            positioned = true;
+            return found;
+        }
+    }
+
+    /**
+     * The terms of a single segment of the query index
+     */
+    static final class LeafTerms {
+
+        final Map<String, FieldTerms> fields = new HashMap<>();
+
+        LeafTerms(LeafReader reader, Format format) throws IOException {
+            for (String field : reader.fields()) {
+                // query hashes are only indexed for cache purges, and are never presearched
+                if (Monitor.FIELDS.hash.equals(field))
+                    continue;
+                Terms t = reader.terms(field);
+                TermsEnum te = t == null ? TermsEnum.EMPTY : t.iterator();
+                fields.put(field, buildFieldTerms(format, te));
+            }
+        }
+    }
+
+    private static FieldTerms buildFieldTerms(Format format, TermsEnum te) throws IOException {
+        switch (format) {
+            case HASH:
+                return new HashTerms(te);
+            case SORTED_ARRAY:
+                return new SortedArrayTerms(te);
+            case FST:
+                return new FSTTerms(te);
+            default:
+                throw new IllegalArgumentException("Unknown format " + format);
+        }
+    }
+
+    /**
+     * The terms of a single field in a single segment.  Implementations are
+     * immutable, and safe to read from multiple threads.
+     */
+    interface FieldTerms extends TermSet, Accountable {
+        BytesRefIterator iterator();
+    }
+
+    // Terms are read from a TermsEnum in sorted order, and concatenated into a single byte array
+    private static abstract class ConcatenatedTerms implements FieldTerms {
+
+        final byte[] bytes;
+        final int count;
+
+        ConcatenatedTerms(TermsEnum te, PackedLongValues.Builder offsets) throws IOException {
+            byte[] buffer = new byte[0];
+            int upto = 0;
+            int count = 0;
+            offsets.add(0);
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                buffer = ArrayUtil.grow(buffer, upto + term.length);
+                System.arraycopy(term.bytes, term.offset, buffer, upto, term.length);
+                upto += term.length;
+                offsets.add(upto);
+                count++;
+            }
+            this.bytes = Arrays.copyOf(buffer, upto);
+            this.count = count;
+        }
+
+        abstract int start(int ord);
+
+        // compare the ord'th term with a BytesRef, as unsigned bytes
+        final int compare(int ord, BytesRef term) {
+            int start = start(ord);
+            int length = start(ord + 1) - start;
+            int limit = Math.min(length, term.length);
+            for (int i = 0; i < limit; i++) {
+                int diff = (bytes[start + i] & 0xff) - (term.bytes[term.offset + i] & 0xff);
+                if (diff != 0)
+                    return diff;
+            }
+            return length - term.length;
+        }
+
+        @Override
+        public BytesRefIterator iterator() {
+            return new BytesRefIterator() {
+                final BytesRef scratch = new BytesRef();
+                int ord = 0;
+
+                @Override
+                public BytesRef next() {
+                    if (ord >= count)
+                        return null;
+                    scratch.bytes = bytes;
+                    scratch.offset = start(ord);
+                    scratch.length = start(ord + 1) - scratch.offset;
+                    ord++;
+                    return scratch;
+                }
+            };
+        }
+    }
+
+    /**
+     * A BytesRefHash of terms
+     *
+     * BytesRefHash lookups use shared scratch space, so they are serialized
+     */
+    static final class HashTerms implements FieldTerms {
+
+        private final Counter bytesUsed = Counter.newCounter();
+        private final BytesRefHash hash = new BytesRefHash(
+                new ByteBlockPool(new ByteBlockPool.DirectTrackingAllocator(bytesUsed)),
+                BytesRefHash.DEFAULT_CAPACITY,
+                new BytesRefHash.DirectBytesStartArray(BytesRefHash.DEFAULT_CAPACITY, bytesUsed));
+
+        HashTerms(TermsEnum te) throws IOException {
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                hash.add(term);
+            }
+        }
+
+        @Override
+        public boolean contains(BytesRef term) {
+            synchronized (hash) {
+                return hash.find(term) >= 0;
+            }
+        }
+
+        @Override
+        public BytesRefIterator iterator() {
+            return new BytesRefIterator() {
+                final BytesRef scratch = new BytesRef();
+                int ord = 0;
+
+                @Override
+                public BytesRef next() {
+                    if (ord >= hash.size())
+                        return null;
+                    return hash.get(ord++, scratch);
+                }
+            };
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return bytesUsed.get();
+        }
+    }
+
+    /**
+     * A sorted array of terms, with monotonically packed offsets
+     */
+    static final class SortedArrayTerms extends ConcatenatedTerms {
+
+        private final PackedLongValues offsets;
+
+        SortedArrayTerms(TermsEnum te) throws IOException {
+            this(te, PackedLongValues.monotonicBuilder(PackedInts.COMPACT));
+        }
+
+        private SortedArrayTerms(TermsEnum te, PackedLongValues.Builder offsets) throws IOException {
+            super(te, offsets);
+            this.offsets = offsets.build();
+        }
+
+        @Override
+        int start(int ord) {
+            return (int) offsets.get(ord);
+        }
+
+        @Override
+        public boolean contains(BytesRef term) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(mid, term);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return RamUsageEstimator.sizeOf(bytes) + offsets.ramBytesUsed();
+        }
+    }
+
+    /**
+     * An FST accepting each term, with no outputs
+     */
+    static final class FSTTerms implements FieldTerms {
+
+        private final FST<Object> fst;      // null if there are no terms
+
+        FSTTerms(TermsEnum te) throws IOException {
+            Builder<Object> builder = new Builder<>(FST.INPUT_TYPE.BYTE1, NoOutputs.getSingleton());
+            IntsRefBuilder scratch = new IntsRefBuilder();
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                builder.add(Util.toIntsRef(term, scratch), NoOutputs.getSingleton().getNoOutput());
+            }
+            this.fst = builder.finish();
+        }
+
+        @Override
+        public boolean contains(BytesRef term) {
+            if (fst == null)
+                return false;
+            try {
+                return Util.get(fst, term) != null;
+            }
+            catch (IOException e) {
+                // the FST is held on-heap, so this can't happen
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public BytesRefIterator iterator() {
+            if (fst == null)
+                return BytesRefIterator.EMPTY;
+            BytesRefFSTEnum<Object> fstEnum = new BytesRefFSTEnum<>(fst);
+            return () -> {
+                BytesRefFSTEnum.InputOutput<Object> next = fstEnum.next();
+                return next == null ? null : next.input;
+            };
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return fst == null ? 0 : fst.ramBytesUsed();
+        }
     }
 }
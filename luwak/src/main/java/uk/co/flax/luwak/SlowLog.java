@@ -60,11 +60,13 @@ public class SlowLog implements Iterable<SlowLog.Entry> {
     /**
      * Add all entries to this slow log
      *
+     * Entries are only recorded if their time is above the configured limit
+     *
      * @param queries the entries to add
      */
     public void addAll(Iterable<SlowLog.Entry> queries) {
         for (SlowLog.Entry query : queries) {
-            if (query.time > limit)
+            if (query.time >= limit)
                 slowQueries.add(query);
         }
     }
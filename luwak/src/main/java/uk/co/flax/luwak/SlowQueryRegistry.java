@@ -0,0 +1,329 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Aggregates {@link SlowLog} entries across match runs
+ *
+ * Each Monitor has a registry, available from {@link Monitor#getSlowQueryRegistry()}, which
+ * records the slow log of every match run.  For each query, the registry keeps the number of
+ * slow runs, their total and maximum times, and a histogram of their times.  Recording is
+ * lock-free, and {@link #snapshot(int)} only copies the histograms of the queries it returns,
+ * so a registry can be polled regularly, for example to populate a dashboard.
+ *
+ * Only queries that take longer than the Monitor's slow log limit are recorded.
+ *
+ * Each recorded query uses about 2KB of heap, mostly for its histogram.  The number of queries
+ * tracked is limited by {@link #setMaxQueries(int)}, by default to {@value #DEFAULT_MAX_QUERIES}.
+ * Once the limit is exceeded, the queries with the lowest total time are discarded, so a query
+ * that has only recently become slow may be discarded before it has accumulated much time.
+ *
+ * @see Monitor#setSlowLogLimit(long)
+ */
+public class SlowQueryRegistry {
+
+    // Times are bucketed by their power of two, and each power of two is split into
+    // SUB_BUCKETS linear sub-buckets, as in HdrHistogram.  A bucket's bounds are within
+    // 1 / SUB_BUCKETS of any time recorded in it.
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /** The default maximum number of queries to track */
+    public static final int DEFAULT_MAX_QUERIES = 10000;
+
+    private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+
+    private volatile int maxQueries = DEFAULT_MAX_QUERIES;
+
+    /**
+     * Set the maximum number of queries to track
+     * @param maxQueries the maximum number of queries
+     */
+    public void setMaxQueries(int maxQueries) {
+        if (maxQueries < 1)
+            throw new IllegalArgumentException("maxQueries must be at least 1");
+        this.maxQueries = maxQueries;
+        evict();
+    }
+
+    /**
+     * @return the maximum number of queries to track
+     */
+    public int getMaxQueries() {
+        return maxQueries;
+    }
+
+    /**
+     * Record a slow run of a query
+     * @param queryId the query id
+     * @param time the time taken in ns
+     */
+    public void record(String queryId, long time) {
+        Recorder recorder = recorders.get(queryId);
+        if (recorder == null) {
+            recorder = recorders.computeIfAbsent(queryId, Recorder::new);
+            recorder.record(Math.max(0, time));
+            if (recorders.size() > maxQueries)
+                evict();
+            return;
+        }
+        recorder.record(Math.max(0, time));
+    }
+
+    // Discard the queries with the lowest total time.  A tenth of the limit is freed at a
+    // time, so that the scan is only made once for every few new queries.
+    private synchronized void evict() {
+        int max = maxQueries;
+        int excess = recorders.size() - (max - max / 10);
+        if (recorders.size() <= max || excess <= 0)
+            return;
+        // total times may change during the scan, so compare each recorder's time as it was read
+        PriorityQueue<Recorder> lowest = new PriorityQueue<>(excess,
+                Comparator.comparingLong((Recorder r) -> r.evictionTime).reversed());
+        for (Recorder recorder : recorders.values()) {
+            recorder.evictionTime = recorder.totalTime.sum();
+            if (lowest.size() < excess)
+                lowest.add(recorder);
+            else if (recorder.evictionTime < lowest.peek().evictionTime) {
+                lowest.poll();
+                lowest.add(recorder);
+            }
+        }
+        for (Recorder recorder : lowest) {
+            recorders.remove(recorder.queryId, recorder);
+        }
+    }
+
+    /**
+     * Record all entries of a slow log
+     * @param slowlog the slow log to record
+     */
+    public void record(SlowLog slowlog) {
+        for (SlowLog.Entry entry : slowlog) {
+            record(entry.queryId, entry.time);
+        }
+    }
+
+    /**
+     * Get the timings of an individual query
+     * @param queryId the query id
+     * @return the query's timings, or null if it has not been recorded
+     */
+    public QueryTimings getTimings(String queryId) {
+        Recorder recorder = recorders.get(queryId);
+        return recorder == null ? null : recorder.timings();
+    }
+
+    /**
+     * Get the slowest queries by total time and by maximum time
+     *
+     * Queries that are being recorded while the snapshot is taken may have slightly
+     * inconsistent counts and times.
+     *
+     * @param k the number of queries to return in each list
+     * @return a Snapshot of the slowest queries
+     */
+    public Snapshot snapshot(int k) {
+        return new Snapshot(recorders.size(),
+                topK(k, r -> r.totalTime.sum()), topK(k, r -> r.maxTime.get()));
+    }
+
+    private List<QueryTimings> topK(int k, ToLongFunction<Recorder> key) {
+        PriorityQueue<Recorder> top = new PriorityQueue<>(Math.max(1, k), Comparator.comparingLong(key));
+        for (Recorder recorder : recorders.values()) {
+            if (top.size() < k)
+                top.add(recorder);
+            else if (k > 0 && key.applyAsLong(recorder) > key.applyAsLong(top.peek())) {
+                top.poll();
+                top.add(recorder);
+            }
+        }
+        List<QueryTimings> timings = new ArrayList<>(top.size());
+        while (top.isEmpty() == false) {
+            timings.add(top.poll().timings());
+        }
+        Collections.reverse(timings);
+        return timings;
+    }
+
+    /**
+     * Discard the timings of some queries
+     * @param queryIds the ids of the queries to discard
+     */
+    public void remove(Iterable<String> queryIds) {
+        for (String queryId : queryIds) {
+            recorders.remove(queryId);
+        }
+    }
+
+    /**
+     * Discard all timings
+     */
+    public void clear() {
+        recorders.clear();
+    }
+
+    /**
+     * @return the number of queries with recorded timings
+     */
+    public int size() {
+        return recorders.size();
+    }
+
+    // package-private for testing
+    static int bucket(long time) {
+        if (time < SUB_BUCKETS)
+            return (int) time;
+        int magnitude = 63 - Long.numberOfLeadingZeros(time);
+        int sub = (int) (time >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // package-private for testing
+    static long bucketLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (magnitude - SUB_BUCKET_BITS);
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : bucketLowerBound(bucket + 1) - 1;
+    }
+
+    private static class Recorder {
+
+        final String queryId;
+        final LongAdder count = new LongAdder();
+        final LongAdder totalTime = new LongAdder();
+        final AtomicLong maxTime = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        long evictionTime;      // guarded by the registry's evict() lock
+
+        Recorder(String queryId) {
+            this.queryId = queryId;
+        }
+
+        void record(long time) {
+            count.increment();
+            totalTime.add(time);
+            maxTime.accumulateAndGet(time, Math::max);
+            histogram.incrementAndGet(bucket(time));
+        }
+
+        QueryTimings timings() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = histogram.get(i);
+            }
+            return new QueryTimings(queryId, count.sum(), totalTime.sum(), maxTime.get(), counts);
+        }
+    }
+
+    /**
+     * The slowest queries in a registry
+     */
+    public static class Snapshot {
+
+        /** The number of queries with recorded timings */
+        public final int queries;
+
+        /** The queries with the highest total time, slowest first */
+        public final List<QueryTimings> byTotalTime;
+
+        /** The queries with the highest maximum time, slowest first */
+        public final List<QueryTimings> byMaxTime;
+
+        Snapshot(int queries, List<QueryTimings> byTotalTime, List<QueryTimings> byMaxTime) {
+            this.queries = queries;
+            this.byTotalTime = Collections.unmodifiableList(byTotalTime);
+            this.byMaxTime = Collections.unmodifiableList(byMaxTime);
+        }
+    }
+
+    /**
+     * The recorded timings of a query
+     */
+    public static class QueryTimings {
+
+        /** The query id */
+        public final String queryId;
+
+        /** The number of slow runs of the query */
+        public final long count;
+
+        /** The total time of the query's slow runs in ns */
+        public final long totalTime;
+
+        /** The maximum time of the query's slow runs in ns */
+        public final long maxTime;
+
+        private final long[] histogram;
+
+        QueryTimings(String queryId, long count, long totalTime, long maxTime, long[] histogram) {
+            this.queryId = queryId;
+            this.count = count;
+            this.totalTime = totalTime;
+            this.maxTime = maxTime;
+            this.histogram = histogram;
+        }
+
+        /**
+         * @return the mean time of the query's slow runs in ns
+         */
+        public long getMeanTime() {
+            return count == 0 ? 0 : totalTime / count;
+        }
+
+        /**
+         * Get an upper bound for a percentile of the query's slow runs
+         *
+         * The bound is within 25% of the actual time.
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return a time in ns that the given percentage of the query's slow runs did not exceed
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            for (long c : histogram) {
+                total += c;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank)
+                    return Math.min(bucketUpperBound(i), maxTime);
+            }
+            return maxTime;
+        }
+
+        @Override
+        public String toString() {
+            return queryId + " [count=" + count + ", total=" + totalTime + "ns, max=" + maxTime + "ns]";
+        }
+    }
+}
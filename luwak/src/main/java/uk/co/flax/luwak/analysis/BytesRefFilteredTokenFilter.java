@@ -24,20 +24,25 @@ import org.apache.lucene.util.BytesRefHash;
 
 /**
  * A FilteringTokenFilter that only accepts terms already contained in a BytesRefHash
+ * or {@link TermSet}
  */
 public class BytesRefFilteredTokenFilter extends FilteringTokenFilter {
 
-    private final BytesRefHash termsHash;
+    private final TermSet terms;
 
     private final TermToBytesRefAttribute bytesAtt = addAttribute(TermToBytesRefAttribute.class);
 
-    public BytesRefFilteredTokenFilter(TokenStream ts, BytesRefHash termsHash) {
+    public BytesRefFilteredTokenFilter(TokenStream ts, TermSet terms) {
         super(ts);
-        this.termsHash = termsHash;
+        this.terms = terms;
+    }
+
+    public BytesRefFilteredTokenFilter(TokenStream ts, BytesRefHash termsHash) {
+        this(ts, TermSet.of(termsHash));
     }
 
     @Override
     protected boolean accept() throws IOException {
-        return termsHash.find(bytesAtt.getBytesRef()) >= 0;
+        return terms.contains(bytesAtt.getBytesRef());
     }
 }
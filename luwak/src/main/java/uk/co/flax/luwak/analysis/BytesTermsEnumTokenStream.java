@@ -0,0 +1,58 @@
+package uk.co.flax.luwak.analysis;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.BytesTermAttribute;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+
+/**
+ * A TokenStream created from a {@link org.apache.lucene.index.TermsEnum}, that exposes
+ * each term's bytes through a {@link BytesTermAttribute}
+ *
+ * Unlike {@link TermsEnumTokenStream}, terms are not decoded into a
+ * {@link org.apache.lucene.analysis.tokenattributes.CharTermAttribute}, so this can only be
+ * consumed by filters that read terms through a
+ * {@link org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute}.  The
+ * BytesRef returned by the attribute is only valid until the next call to incrementToken().
+ */
+public class BytesTermsEnumTokenStream extends TokenStream {
+
+    private final BytesRefIterator termsEnum;
+    private final BytesTermAttribute bytesAtt = addAttribute(BytesTermAttribute.class);
+
+    /**
+     * Create a new BytesTermsEnumTokenStream using a TermsEnum
+     * @param termsEnum the TermsEnum to convert
+     */
+    public BytesTermsEnumTokenStream(BytesRefIterator termsEnum) {
+        this.termsEnum = termsEnum;
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        clearAttributes();
+        BytesRef bytes = termsEnum.next();
+        if (bytes == null)
+            return false;
+        bytesAtt.setBytesRef(bytes);
+        return true;
+    }
+}
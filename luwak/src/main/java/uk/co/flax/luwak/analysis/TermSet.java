@@ -0,0 +1,52 @@
+package uk.co.flax.luwak.analysis;
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+/**
+ * A set of terms that can be checked for membership
+ *
+ * @see BytesRefFilteredTokenFilter
+ */
+public interface TermSet {
+
+    /**
+     * A TermSet that contains no terms
+     */
+    TermSet EMPTY = term -> false;
+
+    /**
+     * @param term the term
+     * @return true if the set contains the term
+     */
+    boolean contains(BytesRef term);
+
+    /**
+     * Create a TermSet from a BytesRefHash
+     *
+     * BytesRefHash lookups use shared scratch space, so the returned TermSet should not
+     * be used from more than one thread at a time.
+     *
+     * @param terms the BytesRefHash
+     * @return a TermSet backed by the BytesRefHash
+     */
+    static TermSet of(BytesRefHash terms) {
+        return term -> terms.find(term) >= 0;
+    }
+
+}
@@ -47,8 +47,8 @@ public abstract class CollectingMatcher<T extends QueryMatch> extends CandidateM
         MatchCollector coll = buildMatchCollector(queryId);
 
         long t = System.nanoTime();
-        IndexSearcher searcher = docs.getSearcher();
-        searcher.search(matchQuery, coll);
+        IndexSearcher searcher = getSearcher();
+        searcher.search(matchQuery, limitTime(coll));
         t = System.nanoTime() - t;
         this.slowlog.addQuery(queryId, t);
 
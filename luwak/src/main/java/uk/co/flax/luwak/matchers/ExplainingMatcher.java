@@ -44,7 +44,7 @@ public class ExplainingMatcher extends CandidateMatcher<ExplainingMatch> {
     public void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
         int maxDocs = docs.getIndexReader().maxDoc();
         for (int i = 0; i < maxDocs; i++) {
-            Explanation explanation = docs.getSearcher().explain(matchQuery, i);
+            Explanation explanation = getSearcher().explain(matchQuery, i);
             if (explanation.isMatch())
                 addMatch(new ExplainingMatch(queryId, docs.resolveDocId(i), explanation));
         }
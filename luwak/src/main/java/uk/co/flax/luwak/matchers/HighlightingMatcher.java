@@ -109,7 +109,7 @@ public class HighlightingMatcher extends CandidateMatcher<HighlightsMatch> {
         final HighlightCollector collector = new HighlightCollector(queryId);
 
         assert query instanceof ForceNoBulkScoringQuery;
-        docs.getSearcher().search(query, new SimpleCollector() {
+        getSearcher().search(query, new SimpleCollector() {
 
             Scorer scorer;
 
@@ -138,7 +138,7 @@ public class HighlightingMatcher extends CandidateMatcher<HighlightsMatch> {
     }
 
     protected HighlightsMatch doMatch(String queryId, Query query) throws IOException {
-        IndexSearcher searcher = docs.getSearcher();
+        IndexSearcher searcher = getSearcher();
         if (searcher.count(query) == 0)
             return null;
         try {
@@ -153,7 +153,7 @@ public class HighlightingMatcher extends CandidateMatcher<HighlightsMatch> {
     // if we can't extract highlights because of a rewrite exception, just report matches with no hits
     protected HighlightsMatch fallback(String queryId, Query query, RewriteException e) throws IOException {
         final HighlightCollector collector = new HighlightCollector(queryId);
-        docs.getSearcher().search(query, new SimpleCollector() {
+        getSearcher().search(query, new SimpleCollector() {
             @Override
             public void collect(int i) throws IOException {
                 collector.setMatch(i);
@@ -0,0 +1,74 @@
+package uk.co.flax.luwak.matchers;
+
+import java.io.IOException;
+import java.util.List;
+
+import uk.co.flax.luwak.CandidateMatcher;
+import uk.co.flax.luwak.MatchError;
+import uk.co.flax.luwak.QueryCacheEntry;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * A candidate query passed from a multithreaded matcher to one of its worker matchers
+ */
+final class MatchTask {
+
+    final String queryId;
+    final QueryCacheEntry entry;
+
+    MatchTask(String queryId, QueryCacheEntry entry) {
+        this.queryId = queryId;
+        this.entry = entry;
+    }
+
+    /**
+     * Run the candidate with a worker matcher, reporting any IO error to the worker
+     */
+    void run(CandidateMatcher<?> matcher) {
+        try {
+            matcher.matchQuery(queryId, entry);
+        } catch (IOException e) {
+            matcher.reportError(new MatchError(queryId, e));
+        }
+    }
+
+    /**
+     * Estimate the cost of each task, from its query's timings in earlier batches
+     *
+     * Tasks whose queries have not been run before are given the mean cost of the others,
+     * or a cost of 1 if none of the queries have been run.
+     */
+    static long[] estimateCosts(List<MatchTask> tasks) {
+        long[] costs = new long[tasks.size()];
+        long total = 0;
+        int known = 0;
+        for (int i = 0; i < costs.length; i++) {
+            costs[i] = tasks.get(i).entry.getCost();
+            if (costs[i] >= 0) {
+                total += costs[i];
+                known++;
+            }
+        }
+        long unknownCost = known == 0 ? 1 : Math.max(1, total / known);
+        for (int i = 0; i < costs.length; i++) {
+            if (costs[i] < 0)
+                costs[i] = unknownCost;
+        }
+        return costs;
+    }
+}
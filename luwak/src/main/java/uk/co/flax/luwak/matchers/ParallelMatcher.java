@@ -2,7 +2,6 @@ package uk.co.flax.luwak.matchers;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
@@ -43,7 +42,7 @@ import uk.co.flax.luwak.*;
  */
 public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
 
-    private final BlockingQueue<MatcherTask> queue = new LinkedBlockingQueue<>(1024);
+    private final BlockingQueue<MatchTask> queue = new LinkedBlockingQueue<>(1024);
 
     private final List<Future<CandidateMatcher<T>>> futures = new ArrayList<>();
 
@@ -70,14 +69,25 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
     }
 
     @Override
-    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+    protected void doMatchQuery(String queryId, QueryCacheEntry entry) throws IOException {
         try {
-            queue.put(new MatcherTask(queryId, matchQuery, metadata));
+            queue.put(new MatchTask(queryId, entry));
         } catch (InterruptedException e) {
             throw new IOException("Interrupted during match", e);
         }
     }
 
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+        doMatchQuery(queryId, new QueryCacheEntry(null, matchQuery, metadata));
+    }
+
+    @Override
+    public boolean acceptsConcurrentCandidates() {
+        // candidates are only handed to the workers' queue
+        return true;
+    }
+
     @Override
     public T resolve(T match1, T match2) {
         return collectorMatcher.resolve(match1, match2);
@@ -90,6 +100,30 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
         }
     }
 
+    @Override
+    public void setMatchTimeout(long timeout) {
+        super.setMatchTimeout(timeout);
+        for (MatcherWorker mw : workers) {
+            mw.matcher.setMatchTimeout(timeout);
+        }
+    }
+
+    @Override
+    public void setMatchHandler(MatchHandler<T> handler) {
+        super.setMatchHandler(handler);
+        for (MatcherWorker mw : workers) {
+            mw.matcher.setMatchHandler(handler);
+        }
+    }
+
+    @Override
+    public void setMatchQuota(MatchQuota quota) {
+        super.setMatchQuota(quota);
+        for (MatcherWorker mw : workers) {
+            mw.matcher.setMatchQuota(quota);
+        }
+    }
+
     @Override
     public void finish(long buildTime, int queryCount) {
         try {
@@ -109,6 +143,7 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
                     this.reportError(error);
                 }
                 this.slowlog.addAll(matches.getSlowLog());
+                this.addCandidateMatchTime(matches.getCandidateMatchTime());
             }
 
         } catch (InterruptedException | ExecutionException e) {
@@ -124,18 +159,15 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
         private MatcherWorker(MatcherFactory<T> matcherFactory) {
             this.matcher = matcherFactory.createMatcher(docs);
             this.matcher.setSlowLogLimit(slowlog.getLimit());
+            this.matcher.setMatchTimeout(getMatchTimeout());
         }
 
         @Override
         public CandidateMatcher<T> call() {
-            MatcherTask task;
+            MatchTask task;
             try {
                 while ((task = queue.take()) != END) {
-                    try {
-                        matcher.matchQuery(task.id, task.matchQuery, task.metadata);
-                    } catch (IOException e) {
-                        matcher.reportError(new MatchError(task.id, e));
-                    }
+                    task.run(matcher);
                 }
             } catch (InterruptedException e) {
                 throw new RuntimeException("Interrupted during match", e);
@@ -149,22 +181,9 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
 
     }
 
-    private static class MatcherTask {
-
-        final String id;
-        final Query matchQuery;
-        final Map<String,String> metadata;
-
-        private MatcherTask(String id, Query matchQuery, Map<String, String> metadata) {
-            this.id = id;
-            this.matchQuery = matchQuery;
-            this.metadata = metadata;
-        }
-    }
-
     /* Marker object placed on the queue after all matches are done, to indicate to the
        worker threads that they should finish */
-    private static final MatcherTask END = new MatcherTask("", null, Collections.emptyMap());
+    private static final MatchTask END = new MatchTask("", null);
 
     public static class ParallelMatcherFactory<T extends QueryMatch> implements MatcherFactory<T> {
 
@@ -34,6 +34,10 @@ import uk.co.flax.luwak.util.CollectionUtils;
  * then partitions them amongst a number of worker threads to perform the actual
  * matching.
  *
+ * Candidates are partitioned by their estimated cost, taken from the time their
+ * queries took to run in earlier batches, so that each thread has a similar amount
+ * of work to do.  The most expensive candidates are run first.
+ *
  * This class delegates the matching to separate CandidateMatcher classes,
  * built from a passed in MatcherFactory.
  *
@@ -55,19 +59,6 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
 
     private final CandidateMatcher<T> resolvingMatcher;
 
-    private static class MatchTask {
-
-        final String queryId;
-        final Query matchQuery;
-        final Map<String, String> metadata;
-
-        private MatchTask(String queryId, Query matchQuery, Map<String, String> metadata) {
-            this.queryId = queryId;
-            this.matchQuery = matchQuery;
-            this.metadata = metadata;
-        }
-    }
-
     private final List<MatchTask> tasks = new ArrayList<>();
 
     public PartitionMatcher(DocumentBatch docs, ExecutorService executor, MatcherFactory<T> matcherFactory, int threads) {
@@ -78,9 +69,14 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
         this.resolvingMatcher = matcherFactory.createMatcher(docs);
     }
 
+    @Override
+    protected void doMatchQuery(String queryId, QueryCacheEntry entry) throws IOException {
+        tasks.add(new MatchTask(queryId, entry));
+    }
+
     @Override
     protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
-        tasks.add(new MatchTask(queryId, matchQuery, metadata));
+        tasks.add(new MatchTask(queryId, new QueryCacheEntry(null, matchQuery, metadata)));
     }
 
     @Override
@@ -92,9 +88,15 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
     public void finish(long buildTime, int queryCount) {
 
         List<Callable<Matches<T>>> workers = new ArrayList<>(threads);
-        for (List<MatchTask> taskset : CollectionUtils.partition(tasks, threads)) {
+        long[] costs = MatchTask.estimateCosts(tasks);
+        for (List<MatchTask> taskset : CollectionUtils.partitionByCost(tasks, costs, threads)) {
             CandidateMatcher<T> matcher = matcherFactory.createMatcher(docs);
             matcher.setSlowLogLimit(this.slowlog.getLimit());
+            matcher.setMatchTimeout(getMatchTimeout());
+            if (getMatchHandler() != null)
+                matcher.setMatchHandler(getMatchHandler());
+            if (getMatchQuota() != null)
+                matcher.setMatchQuota(getMatchQuota());
             workers.add(new MatcherWorker(taskset, matcher));
         }
 
@@ -106,7 +108,11 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
                         addMatch(match);
                     }
                 }
+                for (MatchError error : matches.getErrors()) {
+                    this.reportError(error);
+                }
                 this.slowlog.addAll(matches.getSlowLog());
+                this.addCandidateMatchTime(matches.getCandidateMatchTime());
             }
 
         } catch (InterruptedException | ExecutionException e) {
@@ -129,11 +135,7 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
         @Override
         public Matches<T> call() {
             for (MatchTask task : tasks) {
-                try {
-                    matcher.matchQuery(task.queryId, task.matchQuery, task.metadata);
-                } catch (IOException e) {
-                    PartitionMatcher.this.reportError(new MatchError(task.queryId, e));
-                }
+                task.run(matcher);
             }
             return matcher.getMatches();
         }
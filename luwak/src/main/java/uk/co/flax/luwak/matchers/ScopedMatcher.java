@@ -0,0 +1,305 @@
+package uk.co.flax.luwak.matchers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.search.Query;
+import uk.co.flax.luwak.*;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * A multi-threaded matcher that runs each candidate, or each chunk of candidates, as a
+ * separate task, with its own CandidateMatcher built from a passed in MatcherFactory.
+ *
+ * The tasks are scoped to the match run: they are submitted as the presearcher selects
+ * candidates, and {@link #finish(long, int)} waits for all of them to complete.  If a
+ * timeout is set, any tasks that have not completed when it expires are cancelled, and each
+ * of their candidates is reported as a {@link MatchError} with a {@link TimeoutException}.
+ * Tasks that fail are reported in the same way, and the matches of the other tasks are
+ * still returned.
+ *
+ * Unlike {@link ParallelMatcher} and {@link PartitionMatcher}, this matcher doesn't need a
+ * thread count, and is intended for use with an executor that starts a new thread for each
+ * task.  Use it when queries or matchers may block, for example on I/O; on Java 21 or
+ * later, an executor from {@code Executors.newVirtualThreadPerTaskExecutor()} will then
+ * not tie up a platform thread for each blocked candidate.
+ *
+ * Cancelled tasks are interrupted, and the match run waits for any that have already started
+ * to return, so that no task is still reading the DocumentBatch once the run is over and the
+ * batch can be closed.  A candidate that ignores interruption will therefore delay the end of
+ * the run until it completes; its matches are discarded, unless they are streamed to a
+ * {@link MatchHandler}.
+ *
+ * @param <T> the type of QueryMatch to return
+ */
+public class ScopedMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
+
+    /** The default number of candidates run by each task */
+    public static final int DEFAULT_CHUNK_SIZE = 1;
+
+    private final ExecutorService executor;
+
+    private final MatcherFactory<T> matcherFactory;
+
+    private final int chunkSize;
+
+    private final long timeout;
+
+    private final long deadline;
+
+    private final CandidateMatcher<T> resolvingMatcher;
+
+    private final List<ChunkTask> tasks = new ArrayList<>();
+
+    private List<MatchTask> chunk;
+
+    /**
+     * Create a new ScopedMatcher
+     * @param docs the DocumentBatch to match against
+     * @param executor the ExecutorService to run tasks on
+     * @param matcherFactory MatcherFactory to use to create a CandidateMatcher for each task
+     * @param chunkSize the number of candidates run by each task
+     * @param timeout the time allowed for the match run, or 0 for no limit
+     * @param units the units of the timeout
+     */
+    public ScopedMatcher(DocumentBatch docs, ExecutorService executor, MatcherFactory<T> matcherFactory,
+                         int chunkSize, long timeout, TimeUnit units) {
+        super(docs);
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        this.executor = executor;
+        this.matcherFactory = matcherFactory;
+        this.chunkSize = chunkSize;
+        this.timeout = units.toNanos(timeout);
+        this.deadline = System.nanoTime() + this.timeout;
+        this.chunk = new ArrayList<>(chunkSize);
+        this.resolvingMatcher = matcherFactory.createMatcher(docs);
+    }
+
+    /**
+     * Create a new ScopedMatcher that runs each candidate as a separate task, with no timeout
+     * @param docs the DocumentBatch to match against
+     * @param executor the ExecutorService to run tasks on
+     * @param matcherFactory MatcherFactory to use to create a CandidateMatcher for each task
+     */
+    public ScopedMatcher(DocumentBatch docs, ExecutorService executor, MatcherFactory<T> matcherFactory) {
+        this(docs, executor, matcherFactory, DEFAULT_CHUNK_SIZE, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, QueryCacheEntry entry) throws IOException {
+        chunk.add(new MatchTask(queryId, entry));
+        if (chunk.size() >= chunkSize)
+            submitChunk();
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+        doMatchQuery(queryId, new QueryCacheEntry(null, matchQuery, metadata));
+    }
+
+    private void submitChunk() {
+        if (chunk.isEmpty())
+            return;
+        ChunkTask task = new ChunkTask(chunk);
+        task.future = executor.submit(task);
+        tasks.add(task);
+        chunk = new ArrayList<>(chunkSize);
+    }
+
+    @Override
+    public T resolve(T match1, T match2) {
+        return resolvingMatcher.resolve(match1, match2);
+    }
+
+    @Override
+    public void finish(long buildTime, int queryCount) {
+        submitChunk();
+        List<ChunkTask> cancelled = new ArrayList<>();
+        for (ChunkTask task : tasks) {
+            try {
+                CandidateMatcher<T> matcher = timeout > 0
+                        ? task.future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                        : task.future.get();
+                addMatches(matcher);
+            }
+            catch (TimeoutException e) {
+                task.cancel();
+                cancelled.add(task);
+                task.reportErrors(new TimeoutException("Match timed out after "
+                        + TimeUnit.NANOSECONDS.toMillis(timeout) + "ms"));
+            }
+            catch (ExecutionException e) {
+                task.reportErrors(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            }
+            catch (InterruptedException e) {
+                for (ChunkTask t : tasks) {
+                    t.cancel();
+                }
+                awaitCancelled(tasks);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted during match", e);
+            }
+        }
+        awaitCancelled(cancelled);
+        super.finish(buildTime, queryCount);
+    }
+
+    // Wait for cancelled tasks that had already started to return, so that none of them
+    // is still using the DocumentBatch once the match run is over
+    private void awaitCancelled(List<ChunkTask> cancelled) {
+        boolean interrupted = false;
+        for (ChunkTask task : cancelled) {
+            while (true) {
+                try {
+                    task.done.await();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void addMatches(CandidateMatcher<T> matcher) {
+        Matches<T> matches = matcher.getMatches();
+        for (DocumentMatches<T> docMatches : matches) {
+            for (T match : docMatches) {
+                this.addMatch(match);
+            }
+        }
+        for (MatchError error : matches.getErrors()) {
+            this.reportError(error);
+        }
+        this.slowlog.addAll(matches.getSlowLog());
+        this.addCandidateMatchTime(matches.getCandidateMatchTime());
+    }
+
+    private class ChunkTask implements Callable<CandidateMatcher<T>> {
+
+        final List<MatchTask> candidates;
+        Future<CandidateMatcher<T>> future;
+
+        // claimed by either the task when it starts, or by cancel() if it has not yet started
+        final AtomicBoolean claimed = new AtomicBoolean();
+        // released once the task can no longer use the DocumentBatch
+        final CountDownLatch done = new CountDownLatch(1);
+
+        ChunkTask(List<MatchTask> candidates) {
+            this.candidates = candidates;
+        }
+
+        void cancel() {
+            future.cancel(true);
+            if (claimed.compareAndSet(false, true))
+                done.countDown();
+        }
+
+        @Override
+        public CandidateMatcher<T> call() {
+            if (claimed.compareAndSet(false, true) == false)
+                return null;
+            try {
+                return runCandidates();
+            }
+            finally {
+                done.countDown();
+            }
+        }
+
+        private CandidateMatcher<T> runCandidates() {
+            CandidateMatcher<T> matcher = matcherFactory.createMatcher(docs);
+            matcher.setSlowLogLimit(slowlog.getLimit());
+            matcher.setMatchTimeout(getMatchTimeout());
+            if (getMatchHandler() != null)
+                matcher.setMatchHandler(getMatchHandler());
+            if (getMatchQuota() != null)
+                matcher.setMatchQuota(getMatchQuota());
+            for (MatchTask candidate : candidates) {
+                if (Thread.currentThread().isInterrupted())
+                    break;
+                candidate.run(matcher);
+            }
+            return matcher;
+        }
+
+        void reportErrors(Exception e) {
+            for (MatchTask candidate : candidates) {
+                ScopedMatcher.this.reportError(new MatchError(candidate.queryId, e));
+            }
+        }
+    }
+
+    public static class ScopedMatcherFactory<T extends QueryMatch> implements MatcherFactory<T> {
+
+        private final ExecutorService executor;
+        private final MatcherFactory<T> matcherFactory;
+        private final int chunkSize;
+        private final long timeout;
+        private final TimeUnit units;
+
+        public ScopedMatcherFactory(ExecutorService executor, MatcherFactory<T> matcherFactory,
+                                    int chunkSize, long timeout, TimeUnit units) {
+            this.executor = executor;
+            this.matcherFactory = matcherFactory;
+            this.chunkSize = chunkSize;
+            this.timeout = timeout;
+            this.units = units;
+        }
+
+        @Override
+        public ScopedMatcher<T> createMatcher(DocumentBatch docs) {
+            return new ScopedMatcher<>(docs, executor, matcherFactory, chunkSize, timeout, units);
+        }
+    }
+
+    /**
+     * Create a new ScopedMatcherFactory
+     * @param executor the ExecutorService to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param chunkSize the number of candidates run by each task
+     * @param timeout the time allowed for each match run, or 0 for no limit
+     * @param units the units of the timeout
+     * @param <T> the type of QueryMatch generated
+     * @return a ScopedMatcherFactory
+     */
+    public static <T extends QueryMatch> ScopedMatcherFactory<T> factory(ExecutorService executor,
+                                                                        MatcherFactory<T> matcherFactory,
+                                                                        int chunkSize, long timeout, TimeUnit units) {
+        return new ScopedMatcherFactory<>(executor, matcherFactory, chunkSize, timeout, units);
+    }
+
+    /**
+     * Create a new ScopedMatcherFactory that runs each candidate as a separate task, with no timeout
+     * @param executor the ExecutorService to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param <T> the type of QueryMatch generated
+     * @return a ScopedMatcherFactory
+     */
+    public static <T extends QueryMatch> ScopedMatcherFactory<T> factory(ExecutorService executor,
+                                                                        MatcherFactory<T> matcherFactory) {
+        return factory(executor, matcherFactory, DEFAULT_CHUNK_SIZE, 0, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,292 @@
+package uk.co.flax.luwak.matchers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import org.apache.lucene.search.Query;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.util.CollectionUtils;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * A multi-threaded matcher that runs candidate queries on a {@link ForkJoinPool}
+ *
+ * Candidates are gathered into chunks as the presearcher selects them, and each full chunk
+ * is submitted to the pool straight away, so matching starts before the queryindex search
+ * has finished.  Chunks start small and grow up to a maximum size.  A chunk task keeps
+ * splitting off halves of its candidates for other threads to steal for as long as the pool
+ * has idle threads, so that a few slow queries don't leave the rest of the pool waiting.
+ * Within a chunk, candidates are ordered by their estimated cost, taken from the time their
+ * queries took to run in earlier batches, and chunks are split into halves of equal cost.
+ *
+ * Each pool thread runs its candidates through its own CandidateMatcher, built from a
+ * passed in MatcherFactory, and there is no queue shared between the threads.
+ *
+ * @see uk.co.flax.luwak.matchers.ParallelMatcher
+ * @see uk.co.flax.luwak.matchers.PartitionMatcher
+ *
+ * @param <T> the type of QueryMatch to return
+ */
+public class WorkStealingMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
+
+    /** The default size of the first chunk of candidates submitted to the pool */
+    public static final int DEFAULT_MIN_CHUNK_SIZE = 8;
+
+    /** The default maximum size of a chunk of candidates */
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 512;
+
+    // chunks stop splitting once this many of a thread's tasks are waiting to be stolen
+    private static final int MAX_SURPLUS_TASKS = 2;
+
+    private final ForkJoinPool pool;
+
+    private final MatcherFactory<T> matcherFactory;
+
+    private final int maxChunkSize;
+
+    private final CandidateMatcher<T> resolvingMatcher;
+
+    private final Map<Thread, CandidateMatcher<T>> workerMatchers = new ConcurrentHashMap<>();
+
+    private final List<ForkJoinTask<?>> submitted = new ArrayList<>();
+
+    private List<MatchTask> chunk;
+    private int chunkSize;
+
+    /**
+     * Create a new WorkStealingMatcher
+     * @param docs the DocumentBatch to match against
+     * @param pool the ForkJoinPool to run matches on
+     * @param matcherFactory MatcherFactory to use to create CandidateMatchers for each pool thread
+     * @param minChunkSize the size of the first chunk of candidates submitted to the pool
+     * @param maxChunkSize the maximum size of a chunk of candidates
+     */
+    public WorkStealingMatcher(DocumentBatch docs, ForkJoinPool pool, MatcherFactory<T> matcherFactory,
+                               int minChunkSize, int maxChunkSize) {
+        super(docs);
+        if (minChunkSize < 1 || maxChunkSize < minChunkSize)
+            throw new IllegalArgumentException("Chunk sizes must satisfy 1 <= minChunkSize <= maxChunkSize");
+        this.pool = pool;
+        this.matcherFactory = matcherFactory;
+        this.maxChunkSize = maxChunkSize;
+        this.chunkSize = minChunkSize;
+        this.chunk = new ArrayList<>(minChunkSize);
+        this.resolvingMatcher = matcherFactory.createMatcher(docs);
+    }
+
+    /**
+     * Create a new WorkStealingMatcher with the default chunk sizes
+     * @param docs the DocumentBatch to match against
+     * @param pool the ForkJoinPool to run matches on
+     * @param matcherFactory MatcherFactory to use to create CandidateMatchers for each pool thread
+     */
+    public WorkStealingMatcher(DocumentBatch docs, ForkJoinPool pool, MatcherFactory<T> matcherFactory) {
+        this(docs, pool, matcherFactory, DEFAULT_MIN_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, QueryCacheEntry entry) throws IOException {
+        chunk.add(new MatchTask(queryId, entry));
+        if (chunk.size() >= chunkSize) {
+            submitChunk();
+            chunkSize = Math.min(chunkSize * 2, maxChunkSize);
+        }
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+        doMatchQuery(queryId, new QueryCacheEntry(null, matchQuery, metadata));
+    }
+
+    private void submitChunk() {
+        if (chunk.isEmpty())
+            return;
+        // run the most expensive candidates first, and keep running totals of their costs so
+        // that the chunk can be split into halves of equal cost
+        long[] costs = MatchTask.estimateCosts(chunk);
+        List<MatchTask> sorted = CollectionUtils.partitionByCost(chunk, costs, 1).get(0);
+        Arrays.sort(costs);
+        long[] totals = new long[costs.length + 1];
+        for (int i = 0; i < costs.length; i++) {
+            totals[i + 1] = totals[i] + costs[costs.length - 1 - i];
+        }
+        submitted.add(pool.submit(new MatchChunk(sorted, totals, 0, sorted.size())));
+        chunk = new ArrayList<>(chunkSize);
+    }
+
+    @Override
+    public T resolve(T match1, T match2) {
+        return resolvingMatcher.resolve(match1, match2);
+    }
+
+    @Override
+    public void finish(long buildTime, int queryCount) {
+        submitChunk();
+        try {
+            for (ForkJoinTask<?> task : submitted) {
+                task.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Interrupted during match", e);
+        }
+
+        for (CandidateMatcher<T> matcher : workerMatchers.values()) {
+            Matches<T> matches = matcher.getMatches();
+            for (DocumentMatches<T> docMatches : matches) {
+                for (T match : docMatches) {
+                    this.addMatch(match);
+                }
+            }
+            for (MatchError error : matches.getErrors()) {
+                this.reportError(error);
+            }
+            this.slowlog.addAll(matches.getSlowLog());
+            this.addCandidateMatchTime(matches.getCandidateMatchTime());
+        }
+
+        super.finish(buildTime, queryCount);
+    }
+
+    // each thread only ever uses its own matcher, so matchers need not be thread-safe
+    private CandidateMatcher<T> workerMatcher() {
+        return workerMatchers.computeIfAbsent(Thread.currentThread(), t -> {
+            CandidateMatcher<T> matcher = matcherFactory.createMatcher(docs);
+            matcher.setSlowLogLimit(this.slowlog.getLimit());
+            matcher.setMatchTimeout(getMatchTimeout());
+            if (getMatchHandler() != null)
+                matcher.setMatchHandler(getMatchHandler());
+            if (getMatchQuota() != null)
+                matcher.setMatchQuota(getMatchQuota());
+            return matcher;
+        });
+    }
+
+    private class MatchChunk extends RecursiveAction {
+
+        final List<MatchTask> tasks;
+        final long[] totals;
+        final int from;
+        final int to;
+
+        MatchChunk(List<MatchTask> tasks, long[] totals, int from, int to) {
+            this.tasks = tasks;
+            this.totals = totals;
+            this.from = from;
+            this.to = to;
+        }
+
+        // the index that splits the tasks between from and end into halves of roughly equal cost
+        int costMidpoint(int end) {
+            long half = totals[from] + (totals[end] - totals[from]) / 2;
+            int mid = Arrays.binarySearch(totals, from, end + 1, half);
+            if (mid < 0)
+                mid = -mid - 1;
+            return Math.min(Math.max(mid, from + 1), end - 1);
+        }
+
+        @Override
+        protected void compute() {
+            int end = to;
+            List<MatchChunk> forked = null;
+            // only split while running on one of our pool's threads; a chunk run by a thread
+            // waiting on it from outside the pool would otherwise be forked to the common pool
+            while (end - from > 1 && getPool() == pool && getSurplusQueuedTaskCount() <= MAX_SURPLUS_TASKS) {
+                int mid = costMidpoint(end);
+                MatchChunk right = new MatchChunk(tasks, totals, mid, end);
+                right.fork();
+                if (forked == null)
+                    forked = new ArrayList<>();
+                forked.add(right);
+                end = mid;
+            }
+
+            CandidateMatcher<T> matcher = workerMatcher();
+            for (int i = from; i < end; i++) {
+                tasks.get(i).run(matcher);
+            }
+
+            if (forked != null) {
+                for (int i = forked.size() - 1; i >= 0; i--) {
+                    forked.get(i).join();
+                }
+            }
+        }
+    }
+
+    public static class WorkStealingMatcherFactory<T extends QueryMatch> implements MatcherFactory<T> {
+
+        private final ForkJoinPool pool;
+        private final MatcherFactory<T> matcherFactory;
+        private final int minChunkSize;
+        private final int maxChunkSize;
+
+        public WorkStealingMatcherFactory(ForkJoinPool pool, MatcherFactory<T> matcherFactory,
+                                          int minChunkSize, int maxChunkSize) {
+            this.pool = pool;
+            this.matcherFactory = matcherFactory;
+            this.minChunkSize = minChunkSize;
+            this.maxChunkSize = maxChunkSize;
+        }
+
+        @Override
+        public WorkStealingMatcher<T> createMatcher(DocumentBatch docs) {
+            return new WorkStealingMatcher<>(docs, pool, matcherFactory, minChunkSize, maxChunkSize);
+        }
+    }
+
+    /**
+     * Create a new WorkStealingMatcherFactory
+     * @param pool the ForkJoinPool to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param minChunkSize the size of the first chunk of candidates submitted to the pool
+     * @param maxChunkSize the maximum size of a chunk of candidates
+     * @param <T> the type of QueryMatch generated
+     * @return a WorkStealingMatcherFactory
+     */
+    public static <T extends QueryMatch> WorkStealingMatcherFactory<T> factory(ForkJoinPool pool,
+                                                                              MatcherFactory<T> matcherFactory,
+                                                                              int minChunkSize, int maxChunkSize) {
+        return new WorkStealingMatcherFactory<>(pool, matcherFactory, minChunkSize, maxChunkSize);
+    }
+
+    /**
+     * Create a new WorkStealingMatcherFactory with the default chunk sizes
+     * @param pool the ForkJoinPool to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param <T> the type of QueryMatch generated
+     * @return a WorkStealingMatcherFactory
+     */
+    public static <T extends QueryMatch> WorkStealingMatcherFactory<T> factory(ForkJoinPool pool,
+                                                                              MatcherFactory<T> matcherFactory) {
+        return factory(pool, matcherFactory, DEFAULT_MIN_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * Create a new WorkStealingMatcherFactory that runs matches on the common ForkJoinPool
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param <T> the type of QueryMatch generated
+     * @return a WorkStealingMatcherFactory
+     */
+    public static <T extends QueryMatch> WorkStealingMatcherFactory<T> factory(MatcherFactory<T> matcherFactory) {
+        return factory(ForkJoinPool.commonPool(), matcherFactory);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.apache.lucene.search.Query;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
 
 /*
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -25,6 +26,24 @@ public interface DocumentQueryBuilder {
 
     void addTerm(String field, BytesRef term) throws IOException;
 
+    /**
+     * Add all terms from an iterator for a field
+     *
+     * The iterator may reuse its BytesRef between terms, so implementations must copy any
+     * bytes they retain.  The default implementation copies each term and passes it to
+     * {@link #addTerm(String, BytesRef)}.
+     *
+     * @param field the field
+     * @param terms an iterator over the terms to add
+     * @throws IOException on error
+     */
+    default void addTerms(String field, BytesRefIterator terms) throws IOException {
+        BytesRef term;
+        while ((term = terms.next()) != null) {
+            addTerm(field, BytesRef.deepCopyOf(term));
+        }
+    }
+
     Query build();
 
 }
@@ -118,4 +118,9 @@ public class FieldFilterPresearcherComponent extends PresearcherComponent {
             return new EmptyTokenStream();
         return ts;
     }
+
+    @Override
+    public boolean acceptsBytesTokens() {
+        return true;
+    }
 }
@@ -2,20 +2,17 @@ package uk.co.flax.luwak.presearcher;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.queries.TermsQuery;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
-import uk.co.flax.luwak.analysis.TermsEnumTokenStream;
+import org.apache.lucene.util.BytesRefIterator;
+import uk.co.flax.luwak.analysis.BytesTermsEnumTokenStream;
 import uk.co.flax.luwak.termextractor.querytree.QueryTree;
 import uk.co.flax.luwak.termextractor.querytree.QueryTreeViewer;
 import uk.co.flax.luwak.termextractor.querytree.TreeAdvancer;
@@ -117,20 +114,32 @@ public class MultipassTermFilteredPresearcher extends TermFilteredPresearcher {
 
     private class MultipassDocumentQueryBuilder implements DocumentQueryBuilder {
 
-        BooleanQuery.Builder[] queries = new BooleanQuery.Builder[passes];
-        List<List<Term>> terms = new ArrayList<List<Term>>(passes);
+        TermsQueryBuilder[] terms = new TermsQueryBuilder[passes];
 
         public MultipassDocumentQueryBuilder() {
-            for (int i = 0; i < queries.length; i++) {
-                queries[i] = new BooleanQuery.Builder();
-                terms.add(i, new ArrayList<Term>());
+            for (int i = 0; i < passes; i++) {
+                terms[i] = new TermsQueryBuilder();
             }
         }
 
         @Override
         public void addTerm(String field, BytesRef term) throws IOException {
             for (int i = 0; i < passes; i++) {
-                terms.get(i).add(new Term(field(field, i), term));
+                terms[i].add(field(field, i), term);
+            }
+        }
+
+        @Override
+        public void addTerms(String field, BytesRefIterator it) throws IOException {
+            String[] passFields = new String[passes];
+            for (int i = 0; i < passes; i++) {
+                passFields[i] = field(field, i);
+            }
+            BytesRef term;
+            while ((term = it.next()) != null) {
+                for (int i = 0; i < passes; i++) {
+                    terms[i].add(passFields[i], term);
+                }
             }
         }
 
@@ -138,7 +147,7 @@ public class MultipassTermFilteredPresearcher extends TermFilteredPresearcher {
         public Query build() {
             BooleanQuery.Builder parent = new BooleanQuery.Builder();
             for (int i = 0; i < passes; i++) {
-                parent.add(new TermsQuery(terms.get(i)), BooleanClause.Occur.MUST);
+                parent.add(terms[i].build(), BooleanClause.Occur.MUST);
             }
             return parent.build();
         }
@@ -156,9 +165,9 @@ public class MultipassTermFilteredPresearcher extends TermFilteredPresearcher {
                 // we add the index terms once under a suffixed field for the multipass query, and
                 // once under the plan field name for the TermsEnumTokenFilter
                 doc.add(new Field(field(entry.getKey(), i),
-                        new TermsEnumTokenStream(new BytesRefHashIterator(entry.getValue())), QUERYFIELDTYPE));
+                        new BytesTermsEnumTokenStream(new BytesRefHashIterator(entry.getValue())), QUERYFIELDTYPE));
                 doc.add(new Field(entry.getKey(),
-                        new TermsEnumTokenStream(new BytesRefHashIterator(entry.getValue())), QUERYFIELDTYPE));
+                        new BytesTermsEnumTokenStream(new BytesRefHashIterator(entry.getValue())), QUERYFIELDTYPE));
             }
             extractor.advancePhase(querytree, advancer);
         }
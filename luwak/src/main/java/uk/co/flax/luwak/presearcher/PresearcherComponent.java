@@ -69,6 +69,36 @@ public class PresearcherComponent {
         return ts;
     }
 
+    /**
+     * Whether {@link #filterDocumentTokens(String, TokenStream)} can be passed a TokenStream that
+     * exposes its terms only as bytes, through a
+     * {@link org.apache.lucene.analysis.tokenattributes.BytesTermAttribute}, rather than as chars
+     *
+     * If all of a presearcher's components return true, document terms are passed to them as bytes,
+     * and are not decoded to chars.  By default this returns true only if filterDocumentTokens() is
+     * not overridden; components whose filters only read terms through a
+     * {@link org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute} should override
+     * it to return true.
+     *
+     * @return true if document tokens may be passed to this component as bytes
+     */
+    public boolean acceptsBytesTokens() {
+        return filtersDocumentTokens() == false;
+    }
+
+    /**
+     * @return true if this component overrides {@link #filterDocumentTokens(String, TokenStream)}
+     */
+    final boolean filtersDocumentTokens() {
+        try {
+            return getClass().getMethod("filterDocumentTokens", String.class, TokenStream.class)
+                    .getDeclaringClass() != PresearcherComponent.class;
+        }
+        catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        }
+    }
+
     /**
      * Add an extra token to the Document used to index a Query
      *
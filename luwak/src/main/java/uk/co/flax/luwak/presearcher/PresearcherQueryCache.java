@@ -0,0 +1,168 @@
+package uk.co.flax.luwak.presearcher;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.BytesRefIterator;
+
+/**
+ * Caches the document terms that a {@link TermFilteredPresearcher} extracts from a
+ * {@link uk.co.flax.luwak.DocumentBatch}, so that the same batch can be matched against several
+ * Monitors without running the batch's terms through the presearcher's components for each one.
+ *
+ * Only the per-Monitor step of filtering the terms against the Monitor's
+ * {@link uk.co.flax.luwak.QueryTermFilter} is repeated.  Presearchers that don't filter document
+ * tokens in any of their {@link PresearcherComponent}s read terms directly from the batch, and
+ * do not use the cache.
+ *
+ * Entries are keyed on the batch's index reader, and are released when the batch is closed, or
+ * when the batch is garbage collected.  A cache should only be shared between presearchers
+ * with the same components.
+ *
+ * @see TermFilteredPresearcher#setQueryCache(PresearcherQueryCache)
+ */
+public class PresearcherQueryCache {
+
+    private final Map<LeafReader, DocumentTerms> cache = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * A function that extracts the terms of a batch
+     */
+    interface TermsCollector {
+        DocumentTerms collect(LeafReader reader) throws IOException;
+    }
+
+    DocumentTerms get(LeafReader reader, TermsCollector collector) throws IOException {
+        DocumentTerms terms = cache.get(reader);
+        if (terms != null) {
+            synchronized (this) {
+                hits++;
+            }
+            return terms;
+        }
+        // collect outside the lock; if two Monitors race on the same batch, the first result wins
+        terms = collector.collect(reader);
+        DocumentTerms existing = cache.putIfAbsent(reader, terms);
+        synchronized (this) {
+            misses++;
+        }
+        if (existing != null)
+            return existing;
+        reader.addReaderClosedListener(cache::remove);
+        return terms;
+    }
+
+    /**
+     * @return the number of batches currently cached
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of times a batch's terms were read from the cache
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of times a batch's terms had to be extracted
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Remove all cached batches
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * The sorted, de-duplicated terms of each field of a batch
+     */
+    static final class DocumentTerms {
+
+        private final Map<String, SortedTerms> fields = new LinkedHashMap<>();
+
+        void add(String field, BytesRefHash terms) {
+            fields.put(field, new SortedTerms(terms));
+        }
+
+        Set<String> fields() {
+            return fields.keySet();
+        }
+
+        BytesRefIterator terms(String field) {
+            SortedTerms terms = fields.get(field);
+            return terms == null ? BytesRefIterator.EMPTY : terms.iterator();
+        }
+    }
+
+    private static final class SortedTerms {
+
+        final byte[] bytes;
+        final int[] offsets;
+
+        SortedTerms(BytesRefHash terms) {
+            int[] ords = terms.sort();
+            int count = terms.size();
+            BytesRef scratch = new BytesRef();
+            int length = 0;
+            for (int i = 0; i < count; i++) {
+                length += terms.get(ords[i], scratch).length;
+            }
+            this.bytes = new byte[length];
+            this.offsets = new int[count + 1];
+            int upto = 0;
+            for (int i = 0; i < count; i++) {
+                terms.get(ords[i], scratch);
+                System.arraycopy(scratch.bytes, scratch.offset, bytes, upto, scratch.length);
+                upto += scratch.length;
+                offsets[i + 1] = upto;
+            }
+        }
+
+        BytesRefIterator iterator() {
+            BytesRef scratch = new BytesRef(bytes, 0, 0);
+            return new BytesRefIterator() {
+                int ord = 0;
+
+                @Override
+                public BytesRef next() {
+                    if (ord >= offsets.length - 1)
+                        return null;
+                    scratch.offset = offsets[ord];
+                    scratch.length = offsets[ord + 1] - offsets[ord];
+                    ord++;
+                    return scratch;
+                }
+            };
+        }
+    }
+
+}
@@ -27,7 +27,6 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.*;
-import org.apache.lucene.queries.TermsQuery;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
@@ -38,6 +37,8 @@ import org.apache.lucene.util.BytesRefIterator;
 import uk.co.flax.luwak.Presearcher;
 import uk.co.flax.luwak.QueryTermFilter;
 import uk.co.flax.luwak.analysis.BytesRefFilteredTokenFilter;
+import uk.co.flax.luwak.analysis.BytesTermsEnumTokenStream;
+import uk.co.flax.luwak.analysis.TermSet;
 import uk.co.flax.luwak.analysis.TermsEnumTokenStream;
 import uk.co.flax.luwak.termextractor.QueryAnalyzer;
 import uk.co.flax.luwak.termextractor.QueryTerm;
@@ -62,6 +63,14 @@ public class TermFilteredPresearcher extends Presearcher {
 
     private final List<PresearcherComponent> components = new ArrayList<>();
 
+    // true if any component needs to filter the document's terms as a TokenStream
+    private final boolean filtersDocumentTokens;
+
+    // true if the document's terms can be passed to the components as bytes
+    private final boolean acceptsBytesTokens;
+
+    private volatile PresearcherQueryCache queryCache;
+
     public static final String ANYTOKEN_FIELD = "__anytokenfield";
 
     public static final String ANYTOKEN = "__ANYTOKEN__";
@@ -69,6 +78,14 @@ public class TermFilteredPresearcher extends Presearcher {
     public TermFilteredPresearcher(TreeWeightor weightor, PresearcherComponent... components) {
         this.extractor = QueryAnalyzer.fromComponents(weightor, components);
         this.components.addAll(Arrays.asList(components));
+        boolean filters = false;
+        boolean bytes = true;
+        for (PresearcherComponent component : components) {
+            filters |= component.filtersDocumentTokens();
+            bytes &= component.acceptsBytesTokens();
+        }
+        this.filtersDocumentTokens = filters;
+        this.acceptsBytesTokens = bytes;
     }
 
     public TermFilteredPresearcher(PresearcherComponent... components) {
@@ -83,21 +100,34 @@ public class TermFilteredPresearcher extends Presearcher {
     public final Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter) {
         try {
             DocumentQueryBuilder queryBuilder = getQueryBuilder();
-            for (String field : reader.fields()) {
-
-                TokenStream ts = new TermsEnumTokenStream(reader.terms(field).iterator());
-                for (PresearcherComponent component : components) {
-                    ts = component.filterDocumentTokens(field, ts);
+            PresearcherQueryCache cache = this.queryCache;
+            if (filtersDocumentTokens && cache != null) {
+                PresearcherQueryCache.DocumentTerms terms = cache.get(reader, this::collectDocumentTerms);
+                for (String field : terms.fields()) {
+                    queryBuilder.addTerms(field, filteredTerms(terms.terms(field), queryTermFilter.getTermSet(field)));
                 }
+            }
+            else {
+                for (String field : reader.fields()) {
+
+                    if (filtersDocumentTokens == false) {
+                        // no components need to see the terms, so pass them straight from the
+                        // TermsEnum to the query builder
+                        queryBuilder.addTerms(field, filteredTerms(reader.terms(field).iterator(),
+                                queryTermFilter.getTermSet(field)));
+                        continue;
+                    }
 
-                ts = new BytesRefFilteredTokenFilter(ts, queryTermFilter.getTerms(field));
+                    TokenStream ts = new BytesRefFilteredTokenFilter(documentTokens(reader, field),
+                            queryTermFilter.getTermSet(field));
 
-                TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
-                while (ts.incrementToken()) {
-                    queryBuilder.addTerm(field, BytesRef.deepCopyOf(termAtt.getBytesRef()));
-                }
-                ts.close();
+                    TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+                    while (ts.incrementToken()) {
+                        queryBuilder.addTerm(field, BytesRef.deepCopyOf(termAtt.getBytesRef()));
+                    }
+                    ts.close();
 
+                }
             }
             Query presearcherQuery = queryBuilder.build();
 
@@ -118,19 +148,83 @@ public class TermFilteredPresearcher extends Presearcher {
         }
     }
 
+    // the document's terms for a field, as filtered by the presearcher's components
+    private TokenStream documentTokens(LeafReader reader, String field) throws IOException {
+        TermsEnum te = reader.terms(field).iterator();
+        TokenStream ts = acceptsBytesTokens ? new BytesTermsEnumTokenStream(te) : new TermsEnumTokenStream(te);
+        for (PresearcherComponent component : components) {
+            ts = component.filterDocumentTokens(field, ts);
+        }
+        return ts;
+    }
+
+    private PresearcherQueryCache.DocumentTerms collectDocumentTerms(LeafReader reader) throws IOException {
+        PresearcherQueryCache.DocumentTerms terms = new PresearcherQueryCache.DocumentTerms();
+        for (String field : reader.fields()) {
+            BytesRefHash fieldTerms = new BytesRefHash();
+            try (TokenStream ts = documentTokens(reader, field)) {
+                TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+                while (ts.incrementToken()) {
+                    fieldTerms.add(termAtt.getBytesRef());
+                }
+            }
+            terms.add(field, fieldTerms);
+        }
+        return terms;
+    }
+
+    private static BytesRefIterator filteredTerms(BytesRefIterator terms, TermSet termSet) {
+        return () -> {
+            BytesRef term;
+            while ((term = terms.next()) != null) {
+                if (termSet.contains(term))
+                    return term;
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Cache the document terms of each batch passed to {@link #buildQuery(LeafReader, QueryTermFilter)},
+     * so that matching the same batch against several Monitors using this presearcher only extracts
+     * the batch's terms once
+     *
+     * @param queryCache the cache to use, or null to disable caching
+     * @return this presearcher
+     */
+    public TermFilteredPresearcher setQueryCache(PresearcherQueryCache queryCache) {
+        this.queryCache = queryCache;
+        return this;
+    }
+
+    /**
+     * @return the cache of batch terms used by this presearcher, or null if there is no cache
+     */
+    public PresearcherQueryCache getQueryCache() {
+        return queryCache;
+    }
+
     protected DocumentQueryBuilder getQueryBuilder() {
         return new DocumentQueryBuilder() {
 
-            List<Term> terms = new ArrayList<>();
+            TermsQueryBuilder terms = new TermsQueryBuilder();
 
             @Override
             public void addTerm(String field, BytesRef term) throws IOException {
-                terms.add(new Term(field, term));
+                terms.add(field, term);
+            }
+
+            @Override
+            public void addTerms(String field, BytesRefIterator it) throws IOException {
+                BytesRef term;
+                while ((term = it.next()) != null) {
+                    terms.add(field, term);
+                }
             }
 
             @Override
             public Query build() {
-                return new TermsQuery(terms);
+                return terms.build();
             }
         };
     }
@@ -170,7 +264,7 @@ public class TermFilteredPresearcher extends Presearcher {
         Document doc = new Document();
         for (Map.Entry<String, BytesRefHash> entry : fieldTerms.entrySet()) {
             doc.add(new Field(entry.getKey(),
-                    new TermsEnumTokenStream(new BytesRefHashIterator(entry.getValue())), QUERYFIELDTYPE));
+                    new BytesTermsEnumTokenStream(new BytesRefHashIterator(entry.getValue())), QUERYFIELDTYPE));
         }
         return doc;
     }
@@ -0,0 +1,122 @@
+package uk.co.flax.luwak.presearcher;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.*;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Collects terms for a {@link TermInSetQuery} per field
+ *
+ * The bytes of each field's terms are appended to a single growing buffer, rather than being
+ * copied into separate BytesRef and Term objects, and the resulting query is built from
+ * views over that buffer.  Terms passed to {@link #add(String, BytesRef)} may therefore be
+ * reused by the caller.
+ */
+class TermsQueryBuilder {
+
+    private final Map<String, TermBuffer> fields = new HashMap<>();
+
+    private String lastField;
+    private TermBuffer lastBuffer;
+
+    /**
+     * Add a term
+     * @param field the term's field
+     * @param term  the term's bytes, which are copied
+     */
+    void add(String field, BytesRef term) {
+        // terms are generally added a field at a time, so avoid a map lookup per term
+        if (field.equals(lastField) == false) {
+            lastBuffer = fields.computeIfAbsent(field, f -> new TermBuffer());
+            lastField = field;
+        }
+        lastBuffer.append(term);
+    }
+
+    /**
+     * @return a query over all terms that have been added
+     */
+    Query build() {
+        // with no terms, the query matches nothing, whatever its field
+        if (fields.size() == 0)
+            return new TermInSetQuery("", Collections.emptyList());
+        if (fields.size() == 1) {
+            Map.Entry<String, TermBuffer> entry = fields.entrySet().iterator().next();
+            return new TermInSetQuery(entry.getKey(), entry.getValue());
+        }
+        // a disjunction of one TermInSetQuery per field
+        BooleanQuery.Builder bq = new BooleanQuery.Builder();
+        bq.setDisableCoord(true);
+        for (Map.Entry<String, TermBuffer> entry : fields.entrySet()) {
+            bq.add(new TermInSetQuery(entry.getKey(), entry.getValue()), BooleanClause.Occur.SHOULD);
+        }
+        return new ConstantScoreQuery(bq.build());
+    }
+
+    // TermInSetQuery takes its terms as a Collection, and copies them into its own
+    // prefix-coded form, so the views only need to live as long as the constructor
+    private static final class TermBuffer extends AbstractCollection<BytesRef> {
+
+        byte[] bytes = new byte[256];
+        int[] offsets = new int[]{ 0, 0 };
+        int count = 0;
+
+        void append(BytesRef term) {
+            int start = offsets[count];
+            bytes = ArrayUtil.grow(bytes, start + term.length);
+            System.arraycopy(term.bytes, term.offset, bytes, start, term.length);
+            offsets = ArrayUtil.grow(offsets, count + 2);
+            count++;
+            offsets[count] = start + term.length;
+        }
+
+        @Override
+        public Iterator<BytesRef> iterator() {
+            return new Iterator<BytesRef>() {
+                int ord = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return ord < count;
+                }
+
+                @Override
+                public BytesRef next() {
+                    if (ord >= count)
+                        throw new NoSuchElementException();
+                    BytesRef term = new BytesRef(bytes, offsets[ord], offsets[ord + 1] - offsets[ord]);
+                    ord++;
+                    return term;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+}
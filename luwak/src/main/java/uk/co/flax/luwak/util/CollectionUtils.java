@@ -45,6 +45,44 @@ public final class CollectionUtils {
         return list;
     }
 
+    /**
+     * Partitions items into slices of roughly equal total cost
+     *
+     * Uses longest-processing-time-first scheduling: items are taken in descending order of
+     * cost, and each is added to the slice with the lowest total cost so far.  Within each
+     * slice, items are in descending order of cost.
+     *
+     * @param items the items to partition
+     * @param costs the cost of each item
+     * @param slices the number of slices
+     * @param <T> the type of the items
+     * @return a list of slices
+     */
+    public static <T> List<List<T>> partitionByCost(List<T> items, long[] costs, int slices) {
+        Integer[] order = new Integer[items.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(costs[b], costs[a]));
+
+        List<List<T>> list = new ArrayList<>(slices);
+        long[] loads = new long[slices];
+        // break ties between equally loaded slices by index, so that equal costs are dealt out evenly
+        PriorityQueue<Integer> lightest = new PriorityQueue<>(slices,
+                (a, b) -> loads[a] == loads[b] ? Integer.compare(a, b) : Long.compare(loads[a], loads[b]));
+        for (int i = 0; i < slices; i++) {
+            list.add(new ArrayList<>());
+            lightest.add(i);
+        }
+        for (int item : order) {
+            int slice = lightest.poll();
+            list.get(slice).add(items.get(item));
+            loads[slice] += costs[item];
+            lightest.add(slice);
+        }
+        return list;
+    }
+
     /**
      * Drains the queue as {@link BlockingQueue#drainTo(Collection, int)}, but if the requested
      * {@code numElements} elements are not available, it will wait for them up to the specified
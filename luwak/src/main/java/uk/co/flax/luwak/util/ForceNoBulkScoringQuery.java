@@ -32,12 +32,27 @@ public class ForceNoBulkScoringQuery extends Query {
 
     private final Query inner;
 
+    private final boolean rewritten;
+
     public ForceNoBulkScoringQuery(Query inner) {
+        this(inner, false);
+    }
+
+    /**
+     * Create a new ForceNoBulkScoringQuery
+     * @param inner the query to wrap
+     * @param rewritten true if the wrapped query is already fully rewritten, and need not
+     *                  be rewritten against each reader
+     */
+    public ForceNoBulkScoringQuery(Query inner, boolean rewritten) {
         this.inner = inner;
+        this.rewritten = rewritten;
     }
 
     @Override
     public Query rewrite(IndexReader reader) throws IOException {
+        if (this.rewritten)
+            return this;
         Query rewritten = inner.rewrite(reader);
         if (rewritten != inner)
             return new ForceNoBulkScoringQuery(rewritten);
@@ -49,12 +64,12 @@ public class ForceNoBulkScoringQuery extends Query {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ForceNoBulkScoringQuery that = (ForceNoBulkScoringQuery) o;
-        return Objects.equals(inner, that.inner);
+        return rewritten == that.rewritten && Objects.equals(inner, that.inner);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(inner);
+        return Objects.hash(inner, rewritten);
     }
 
     public Query getWrappedQuery() {
@@ -0,0 +1,108 @@
+package uk.co.flax.luwak.util;
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.spans.*;
+
+/**
+ * Rewrites queries whose rewritten form doesn't depend on the index they are run against
+ *
+ * Queries such as MultiTermQueries are rewritten using the terms of an index, and must be
+ * rewritten against each DocumentBatch.  Many other queries, such as a BooleanQuery of
+ * TermQueries, always rewrite to the same form, which can be built once and then reused
+ * for every batch.  Queries of unknown types are assumed to depend on the index.
+ */
+public class ReaderIndependentRewriter {
+
+    public static final ReaderIndependentRewriter INSTANCE = new ReaderIndependentRewriter();
+
+    private static final IndexReader EMPTY_READER = new MemoryIndex().createSearcher().getIndexReader();
+
+    /**
+     * Rewrite a query, if its rewritten form doesn't depend on the index
+     * @param in the query to rewrite
+     * @return the fully rewritten query, or null if its rewrite depends on the index
+     * @throws IOException on error
+     */
+    public Query rewrite(Query in) throws IOException {
+        if (isReaderIndependent(in) == false)
+            return null;
+        Query query = in;
+        for (Query rewritten = query.rewrite(EMPTY_READER); rewritten != query; rewritten = query.rewrite(EMPTY_READER)) {
+            query = rewritten;
+        }
+        return query;
+    }
+
+    /**
+     * Check whether a query's rewritten form depends on the index it is run against
+     *
+     * Override this to add custom query types
+     *
+     * @param in the query to check
+     * @return true if the query always rewrites to the same form
+     */
+    protected boolean isReaderIndependent(Query in) {
+        if (in instanceof TermQuery || in instanceof PhraseQuery || in instanceof MultiPhraseQuery
+                || in instanceof SynonymQuery || in instanceof TermInSetQuery
+                || in instanceof MatchAllDocsQuery || in instanceof MatchNoDocsQuery || in instanceof SpanTermQuery)
+            return true;
+        if (in instanceof BooleanQuery) {
+            for (BooleanClause clause : (BooleanQuery) in) {
+                if (isReaderIndependent(clause.getQuery()) == false)
+                    return false;
+            }
+            return true;
+        }
+        if (in instanceof DisjunctionMaxQuery) {
+            for (Query disjunct : (DisjunctionMaxQuery) in) {
+                if (isReaderIndependent(disjunct) == false)
+                    return false;
+            }
+            return true;
+        }
+        if (in instanceof BoostQuery)
+            return isReaderIndependent(((BoostQuery) in).getQuery());
+        if (in instanceof ConstantScoreQuery)
+            return isReaderIndependent(((ConstantScoreQuery) in).getQuery());
+        if (in instanceof SpanBoostQuery)
+            return isReaderIndependent(((SpanBoostQuery) in).getQuery());
+        if (in instanceof SpanNearQuery)
+            return areReaderIndependent(((SpanNearQuery) in).getClauses());
+        if (in instanceof SpanOrQuery)
+            return areReaderIndependent(((SpanOrQuery) in).getClauses());
+        if (in instanceof SpanNotQuery)
+            return isReaderIndependent(((SpanNotQuery) in).getInclude())
+                    && isReaderIndependent(((SpanNotQuery) in).getExclude());
+        if (in instanceof SpanFirstQuery)
+            return isReaderIndependent(((SpanFirstQuery) in).getMatch());
+        return false;
+    }
+
+    private boolean areReaderIndependent(SpanQuery[] clauses) {
+        for (SpanQuery clause : clauses) {
+            if (isReaderIndependent(clause) == false)
+                return false;
+        }
+        return true;
+    }
+
+}
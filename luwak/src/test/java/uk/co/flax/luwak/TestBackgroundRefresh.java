@@ -0,0 +1,112 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestBackgroundRefresh {
+
+    private static final InputDocument DOC
+            = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+
+    private static Monitor newMonitor(long maxStaleness, TimeUnit units) throws IOException {
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setMaxStaleness(maxStaleness, units);
+        return new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config);
+    }
+
+    private static int matchCount(Monitor monitor) throws IOException {
+        return monitor.match(DOC, SimpleMatcher.FACTORY).getMatchCount("doc1");
+    }
+
+    @Test
+    public void testAsyncUpdatesAreVisibleOnceGenerationIsReached() throws IOException, UpdateException {
+
+        try (Monitor monitor = newMonitor(1, TimeUnit.HOURS)) {
+            long generation = monitor.updateAsync(new MonitorQuery("1", "test"));
+            assertThat(matchCount(monitor)).isEqualTo(0);
+
+            assertThat(monitor.waitForGeneration(generation, 10, TimeUnit.SECONDS)).isTrue();
+            assertThat(matchCount(monitor)).isEqualTo(1);
+        }
+
+    }
+
+    @Test
+    public void testBlockingUpdatesAreVisibleImmediately() throws IOException, UpdateException {
+
+        try (Monitor monitor = newMonitor(1, TimeUnit.HOURS)) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"));
+            assertThat(matchCount(monitor)).isEqualTo(2);
+
+            monitor.deleteById("1");
+            assertThat(matchCount(monitor)).isEqualTo(1);
+
+            monitor.clear();
+            assertThat(matchCount(monitor)).isEqualTo(0);
+        }
+
+    }
+
+    @Test
+    public void testAsyncUpdatesBecomeVisibleWithinMaxStaleness() throws Exception {
+
+        try (Monitor monitor = newMonitor(20, TimeUnit.MILLISECONDS)) {
+            monitor.updateAsync(new MonitorQuery("1", "test"));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (matchCount(monitor) == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(matchCount(monitor)).isEqualTo(1);
+        }
+
+    }
+
+    @Test
+    public void testPurgeDoesNotDropQueriesAwaitingRefresh() throws IOException, UpdateException {
+
+        try (Monitor monitor = newMonitor(1, TimeUnit.HOURS)) {
+            long generation = monitor.updateAsync(new MonitorQuery("1", "test"));
+            monitor.purgeCache();
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(1);
+
+            monitor.waitForGeneration(generation);
+            assertThat(matchCount(monitor)).isEqualTo(1);
+        }
+
+    }
+
+    @Test
+    public void testGenerationsAreVisibleImmediatelyWithoutBackgroundRefresh() throws IOException, UpdateException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher())) {
+            long generation = monitor.updateAsync(new MonitorQuery("1", "test"));
+            assertThat(matchCount(monitor)).isEqualTo(1);
+            assertThat(monitor.waitForGeneration(generation, 1, TimeUnit.MILLISECONDS)).isTrue();
+        }
+
+    }
+
+}
@@ -0,0 +1,158 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.ParallelMatcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.PresearcherMatch;
+import uk.co.flax.luwak.presearcher.PresearcherMatches;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestConcurrentSegmentSearch {
+
+    private static final String[] WORDS = new String[]{ "alpha", "beta", "gamma", "delta", "epsilon", "zeta" };
+
+    private final AtomicInteger searchThreads = new AtomicInteger();
+
+    private ExecutorService searchExecutor;
+    private ExecutorService matchExecutor;
+
+    private Monitor serial;
+    private Monitor concurrent;
+
+    @Before
+    public void setup() throws IOException, UpdateException {
+        searchExecutor = Executors.newFixedThreadPool(4, r -> {
+            searchThreads.incrementAndGet();
+            return new Thread(r);
+        });
+        matchExecutor = Executors.newFixedThreadPool(4);
+        serial = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher());
+        concurrent = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new QueryIndexConfiguration().setSearchExecutor(searchExecutor));
+        // each update is committed separately, giving a queryindex with several segments
+        for (int segment = 0; segment < 5; segment++) {
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                String id = segment + "_" + i;
+                String query = WORDS[(segment + i) % WORDS.length] + " " + WORDS[i % WORDS.length];
+                queries.add(new MonitorQuery(id, query));
+            }
+            serial.update(queries);
+            concurrent.update(queries);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        serial.close();
+        concurrent.close();
+        searchExecutor.shutdown();
+        matchExecutor.shutdown();
+    }
+
+    private static DocumentBatch batch() {
+        return DocumentBatch.of(
+                InputDocument.builder("doc1").addField("f", "alpha gamma", new StandardAnalyzer()).build(),
+                InputDocument.builder("doc2").addField("f", "zeta", new StandardAnalyzer()).build(),
+                InputDocument.builder("doc3").addField("f", "nothing here", new StandardAnalyzer()).build()
+        );
+    }
+
+    private static void assertSameMatches(Matches<QueryMatch> expected, Matches<QueryMatch> actual) {
+        for (String doc : new String[]{ "doc1", "doc2", "doc3" }) {
+            assertThat(actual.getMatches(doc).getMatches())
+                    .containsOnlyElementsOf(expected.getMatches(doc).getMatches());
+            assertThat(actual.getMatchCount(doc)).isEqualTo(expected.getMatchCount(doc));
+        }
+        assertThat(actual.getPresearcherHits()).isEqualTo(expected.getPresearcherHits());
+        assertThat(actual.getQueriesRun()).isEqualTo(expected.getQueriesRun());
+        assertThat(actual.getErrors()).isEmpty();
+    }
+
+    @Test
+    public void testSerialMatcherReceivesCandidatesFromAllSegments() throws IOException {
+        try (DocumentBatch docs = batch()) {
+            Matches<QueryMatch> expected = serial.match(docs, SimpleMatcher.FACTORY);
+            Matches<QueryMatch> actual = concurrent.match(docs, SimpleMatcher.FACTORY);
+            assertThat(expected.getMatchCount("doc1")).isGreaterThan(0);
+            assertSameMatches(expected, actual);
+        }
+        assertThat(searchThreads.get()).isGreaterThan(0);
+    }
+
+    @Test
+    public void testParallelMatcherReceivesCandidatesConcurrently() throws IOException {
+        MatcherFactory<QueryMatch> factory = ParallelMatcher.factory(matchExecutor, SimpleMatcher.FACTORY, 2);
+        try (DocumentBatch docs = batch()) {
+            CandidateMatcher<QueryMatch> matcher = factory.createMatcher(docs);
+            assertThat(matcher.acceptsConcurrentCandidates()).isTrue();
+            matcher.finish(0, 0);
+
+            Matches<QueryMatch> expected = serial.match(docs, SimpleMatcher.FACTORY);
+            Matches<QueryMatch> actual = concurrent.match(docs, factory);
+            assertSameMatches(expected, actual);
+            assertThat(actual.getQueryIndexSearchTime()).isGreaterThanOrEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testDebugAndScansWithConcurrentSearch() throws IOException {
+        try (DocumentBatch docs = batch()) {
+            PresearcherMatches<QueryMatch> expected = serial.debug(docs, SimpleMatcher.FACTORY);
+            PresearcherMatches<QueryMatch> actual = concurrent.debug(docs, SimpleMatcher.FACTORY);
+            assertSameMatches(expected.matcher, actual.matcher);
+            assertThat(actual.getPresearcherMatchCount()).isEqualTo(expected.getPresearcherMatchCount());
+            assertThat(actual.match("0_0", "doc1").presearcherMatches)
+                    .isEqualTo(expected.match("0_0", "doc1").presearcherMatches);
+        }
+        assertThat(concurrent.getQueryCount()).isEqualTo(100);
+        assertThat(concurrent.getQuery("3_7")).isEqualTo(serial.getQuery("3_7"));
+    }
+
+    @Test
+    public void testDebugWithConcurrentCandidates() throws IOException {
+        MatcherFactory<QueryMatch> factory = ParallelMatcher.factory(matchExecutor, SimpleMatcher.FACTORY, 2);
+        for (int i = 0; i < 10; i++) {
+            try (DocumentBatch docs = batch()) {
+                PresearcherMatches<QueryMatch> expected = serial.debug(docs, SimpleMatcher.FACTORY);
+                PresearcherMatches<QueryMatch> actual = concurrent.debug(docs, factory);
+                assertSameMatches(expected.matcher, actual.matcher);
+                assertThat(actual.getPresearcherMatchCount()).isEqualTo(expected.getPresearcherMatchCount());
+                for (PresearcherMatch<QueryMatch> match : expected) {
+                    assertThat(actual.match(match.queryId, "doc1").presearcherMatches)
+                            .isEqualTo(match.presearcherMatches);
+                }
+            }
+        }
+    }
+
+}
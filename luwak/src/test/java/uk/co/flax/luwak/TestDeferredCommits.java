@@ -0,0 +1,241 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+import uk.co.flax.luwak.testutils.FileUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestDeferredCommits {
+
+    private static final InputDocument DOC
+            = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+
+    private Path indexDirectory;
+
+    @Before
+    public void setup() throws IOException {
+        indexDirectory = Files.createTempDirectory("deferred-commits");
+    }
+
+    @After
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(indexDirectory);
+    }
+
+    private Monitor newMonitor(IndexWriter writer, QueryIndexConfiguration config) throws IOException {
+        return new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), writer, config);
+    }
+
+    private static int logFileCount(Directory directory) throws IOException {
+        int count = 0;
+        for (String file : directory.listAll()) {
+            if (file.startsWith(QueryIndexLog.FILE_PREFIX))
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testChangesAreCommittedImmediatelyByDefault() throws IOException, UpdateException {
+
+        IndexWriter writer = Monitor.defaultIndexWriter(new MMapDirectory(indexDirectory));
+        try (Monitor monitor = newMonitor(writer, new QueryIndexConfiguration())) {
+            monitor.update(new MonitorQuery("1", "test"));
+            assertThat(writer.hasUncommittedChanges()).isFalse();
+            assertThat(logFileCount(writer.getDirectory())).isEqualTo(0);
+        }
+
+    }
+
+    @Test
+    public void testLogIsNotCreatedIfCommitsAreNotDeferred() throws IOException, UpdateException {
+
+        AtomicInteger listings = new AtomicInteger();
+        Directory directory = new FilterDirectory(new MMapDirectory(indexDirectory)) {
+            @Override
+            public String[] listAll() throws IOException {
+                listings.incrementAndGet();
+                return super.listAll();
+            }
+        };
+        IndexWriter writer = Monitor.defaultIndexWriter(directory);
+        listings.set(0);
+
+        try (Monitor monitor = newMonitor(writer, new QueryIndexConfiguration())) {
+            monitor.update(new MonitorQuery("1", "test"));
+            assertThat(listings.get()).isEqualTo(0);
+        }
+
+    }
+
+    @Test
+    public void testUncommittedChangesAreVisibleToMatching() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCommitFrequency(1, TimeUnit.HOURS);
+        IndexWriter writer = Monitor.defaultIndexWriter(new MMapDirectory(indexDirectory));
+
+        try (Monitor monitor = newMonitor(writer, config)) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"));
+            assertThat(writer.hasUncommittedChanges()).isTrue();
+            assertThat(monitor.match(DOC, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(2);
+
+            monitor.deleteById("1");
+            assertThat(monitor.match(DOC, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(1);
+
+            monitor.commit();
+            assertThat(writer.hasUncommittedChanges()).isFalse();
+            assertThat(logFileCount(writer.getDirectory())).isEqualTo(0);
+        }
+
+    }
+
+    @Test
+    public void testCommitsAfterMaxUncommittedUpdates() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setCommitFrequency(1, TimeUnit.HOURS)
+                .setMaxUncommittedUpdates(3);
+        IndexWriter writer = Monitor.defaultIndexWriter(new MMapDirectory(indexDirectory));
+
+        try (Monitor monitor = newMonitor(writer, config)) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"));
+            assertThat(writer.hasUncommittedChanges()).isTrue();
+            assertThat(logFileCount(writer.getDirectory())).isEqualTo(1);
+
+            monitor.update(new MonitorQuery("3", "test"));
+            assertThat(writer.hasUncommittedChanges()).isFalse();
+            assertThat(logFileCount(writer.getDirectory())).isEqualTo(0);
+        }
+
+    }
+
+    @Test
+    public void testCommitsOnSchedule() throws Exception {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCommitFrequency(50, TimeUnit.MILLISECONDS);
+        IndexWriter writer = Monitor.defaultIndexWriter(new MMapDirectory(indexDirectory));
+
+        try (Monitor monitor = newMonitor(writer, config)) {
+            monitor.update(new MonitorQuery("1", "test"));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (writer.hasUncommittedChanges() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(writer.hasUncommittedChanges()).isFalse();
+        }
+
+    }
+
+    @Test
+    public void testUncommittedChangesAreRecoveredFromLog() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCommitFrequency(1, TimeUnit.HOURS);
+
+        IndexWriter writer = Monitor.defaultIndexWriter(new MMapDirectory(indexDirectory));
+        try (Monitor monitor = newMonitor(writer, config)) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"));
+            monitor.commit();
+            monitor.update(new MonitorQuery("3", "test"), new MonitorQuery("4", "test"));
+            monitor.deleteById("1");
+            // simulate a crash by discarding all uncommitted changes
+            writer.rollback();
+        }
+
+        IndexWriter writer2 = Monitor.defaultIndexWriter(new MMapDirectory(indexDirectory));
+        try (Monitor monitor = newMonitor(writer2, config)) {
+            assertThat(monitor.getQueryCount()).isEqualTo(3);
+            assertThat(monitor.getQuery("1")).isNull();
+            assertThat(monitor.match(DOC, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(3);
+            assertThat(writer2.hasUncommittedChanges()).isFalse();
+            assertThat(logFileCount(writer2.getDirectory())).isEqualTo(0);
+        }
+
+    }
+
+    @Test
+    public void testReplayedChangesAreNotLoggedAgain() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCommitFrequency(1, TimeUnit.HOURS);
+
+        IndexWriter writer = Monitor.defaultIndexWriter(new MMapDirectory(indexDirectory));
+        try (Monitor monitor = newMonitor(writer, config)) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"), new MonitorQuery("3", "test"));
+            monitor.deleteById("2");
+            writer.rollback();
+        }
+
+        AtomicInteger logWrites = new AtomicInteger();
+        Directory directory = new FilterDirectory(new MMapDirectory(indexDirectory)) {
+            @Override
+            public IndexOutput createOutput(String name, IOContext context) throws IOException {
+                if (name.startsWith(QueryIndexLog.FILE_PREFIX))
+                    logWrites.incrementAndGet();
+                return super.createOutput(name, context);
+            }
+        };
+        try (Monitor monitor = newMonitor(Monitor.defaultIndexWriter(directory), config)) {
+            assertThat(monitor.getQueryCount()).isEqualTo(2);
+            assertThat(logWrites.get()).isEqualTo(0);
+            assertThat(logFileCount(directory)).isEqualTo(0);
+
+            monitor.update(new MonitorQuery("4", "test"));
+            assertThat(logWrites.get()).isEqualTo(1);
+        }
+
+    }
+
+    @Test
+    public void testLogIsNotKeptIfDisabled() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setCommitFrequency(1, TimeUnit.HOURS)
+                .useWriteAheadLog(false);
+
+        IndexWriter writer = Monitor.defaultIndexWriter(new MMapDirectory(indexDirectory));
+        try (Monitor monitor = newMonitor(writer, config)) {
+            monitor.update(new MonitorQuery("1", "test"));
+            assertThat(logFileCount(writer.getDirectory())).isEqualTo(0);
+            writer.rollback();
+        }
+
+        try (Monitor monitor = newMonitor(Monitor.defaultIndexWriter(new MMapDirectory(indexDirectory)), config)) {
+            assertThat(monitor.getQueryCount()).isEqualTo(0);
+        }
+
+    }
+
+}
@@ -0,0 +1,145 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestIncrementalPurge {
+
+    private static final InputDocument DOC
+            = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+
+    private Monitor monitor;
+
+    private int purges = 0;
+
+    @Before
+    public void setup() throws IOException {
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setFullPurgeInterval(Integer.MAX_VALUE);
+        monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config);
+        monitor.addQueryIndexUpdateListener(new QueryIndexUpdateListener() {
+            @Override
+            public void onPurge() {
+                purges++;
+            }
+        });
+    }
+
+    @After
+    public void teardown() throws IOException {
+        monitor.close();
+    }
+
+    private int cachedQueries() {
+        return monitor.getQueryCacheStats().cachedQueries;
+    }
+
+    @Test
+    public void testDeletedQueriesAreEvicted() throws IOException, UpdateException {
+
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test2"),
+                new MonitorQuery("3", "test3"), new MonitorQuery("4", "test4"));
+        monitor.deleteById("1");
+        assertThat(cachedQueries()).isEqualTo(4);
+
+        monitor.purge();
+        assertThat(purges).isEqualTo(1);
+        assertThat(cachedQueries()).isEqualTo(3);
+    }
+
+    @Test
+    public void testReplacedQueriesAreEvicted() throws IOException, UpdateException {
+
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "foo"),
+                new MonitorQuery("3", "test3"), new MonitorQuery("4", "test4"));
+        monitor.update(new MonitorQuery("2", "bar"));
+        assertThat(cachedQueries()).isEqualTo(5);
+
+        monitor.purge();
+        assertThat(cachedQueries()).isEqualTo(4);
+    }
+
+    @Test
+    public void testQueriesReplacedBeforeTheyAreVisibleAreEvicted() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setFullPurgeInterval(Integer.MAX_VALUE)
+                .setMaxStaleness(1, TimeUnit.HOURS);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "foo"), new MonitorQuery("2", "test2"),
+                    new MonitorQuery("3", "test3"), new MonitorQuery("4", "test4"));
+            // the second replacement is made before the first is visible to searches
+            monitor.updateAsync(new MonitorQuery("1", "bar"));
+            monitor.updateAsync(new MonitorQuery("1", "baz"));
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(6);
+
+            monitor.purge();
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(4);
+        }
+    }
+
+    @Test
+    public void testQueriesSharedWithOtherIdsAreKept() throws IOException, UpdateException {
+
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"),
+                new MonitorQuery("3", "test3"), new MonitorQuery("4", "test4"));
+        assertThat(cachedQueries()).isEqualTo(3);
+
+        monitor.deleteById("1");
+        monitor.purge();
+        assertThat(cachedQueries()).isEqualTo(3);
+
+        Matches<QueryMatch> matches = monitor.match(DOC, SimpleMatcher.FACTORY);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+        assertThat(matches.matches("2", "doc1")).isNotNull();
+    }
+
+    @Test
+    public void testClearFallsBackToFullPurge() throws IOException, UpdateException {
+
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test2"));
+        monitor.clear();
+        monitor.update(new MonitorQuery("3", "test3"));
+
+        monitor.purge();
+        assertThat(purges).isEqualTo(1);
+        assertThat(cachedQueries()).isEqualTo(1);
+    }
+
+    @Test
+    public void testEveryPurgeIsAFullScanByDefault() throws IOException, UpdateException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher())) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test2"));
+            monitor.deleteById("1");
+            monitor.purge();
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(1);
+        }
+    }
+
+}
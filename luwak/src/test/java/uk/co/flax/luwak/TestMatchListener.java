@@ -0,0 +1,148 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestMatchListener {
+
+    static final String TEXTFIELD = "TEXTFIELD";
+
+    static final Analyzer ANALYZER = new WhitespaceAnalyzer();
+
+    static class RecordingListener extends MatchListener {
+
+        int batchSize = -1;
+        long indexTime = -1;
+        long buildTime = -1;
+        int candidates = -1;
+        int queriesRun = -1;
+        long matchTime = -1;
+        int matchingDocs = -1;
+        int matches = -1;
+        int misses = 0;
+        final List<MatchError> errors = new ArrayList<>();
+
+        @Override
+        public void onBatchIndexed(int batchSize, long time) {
+            this.batchSize = batchSize;
+            this.indexTime = time;
+        }
+
+        @Override
+        public void onPresearcherQueryBuilt(long time) {
+            this.buildTime = time;
+        }
+
+        @Override
+        public void onQueryIndexSearched(long time, int candidates) {
+            this.candidates = candidates;
+        }
+
+        @Override
+        public void onCandidatesMatched(long time, int queriesRun) {
+            this.matchTime = time;
+            this.queriesRun = queriesRun;
+        }
+
+        @Override
+        public void onMatchesFound(int matchingDocuments, int matches) {
+            this.matchingDocs = matchingDocuments;
+            this.matches = matches;
+        }
+
+        @Override
+        public void onMatchError(MatchError error) {
+            errors.add(error);
+        }
+
+        @Override
+        public void onQueryCacheMisses(int misses) {
+            this.misses += misses;
+        }
+    }
+
+    @Test
+    public void testListenerReceivesStageStatistics() throws IOException, UpdateException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(TEXTFIELD, ANALYZER), new TermFilteredPresearcher())) {
+            monitor.update(new MonitorQuery("1", "test"),
+                           new MonitorQuery("2", "+test +document"),
+                           new MonitorQuery("3", "+test +unmatched"),
+                           new MonitorQuery("4", "other"));
+
+            RecordingListener listener = new RecordingListener();
+            monitor.addMatchListener(listener);
+
+            DocumentBatch batch = DocumentBatch.of(
+                    InputDocument.builder("doc1").addField(TEXTFIELD, "this is a test document", ANALYZER).build(),
+                    InputDocument.builder("doc2").addField(TEXTFIELD, "this is a test", ANALYZER).build(),
+                    InputDocument.builder("doc3").addField(TEXTFIELD, "nothing here", ANALYZER).build());
+
+            Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY);
+
+            assertThat(listener.batchSize).isEqualTo(3);
+            assertThat(listener.indexTime).isGreaterThan(0);
+            assertThat(listener.buildTime).isGreaterThan(0);
+            // query 3 is indexed under 'unmatched', and so is not selected by the presearcher
+            assertThat(listener.candidates).isEqualTo(2);
+            assertThat(listener.queriesRun).isEqualTo(matches.getQueriesRun()).isEqualTo(2);
+            assertThat(listener.matchTime).isGreaterThan(0);
+            assertThat(listener.matchingDocs).isEqualTo(2);
+            assertThat(listener.matches).isEqualTo(3);
+            assertThat(listener.errors).isEmpty();
+            assertThat(listener.misses).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testListenerReceivesErrors() throws IOException, UpdateException {
+
+        try (Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(0), new TermFilteredPresearcher())) {
+            monitor.update(new MonitorQuery("1", "fast"));
+
+            RecordingListener listener = new RecordingListener();
+            monitor.addMatchListener(listener);
+
+            monitor.match(InputDocument.builder("doc1").build(), docs -> new SimpleMatcher(docs) {
+                @Override
+                protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+                    throw new IOException("Error matching " + queryId);
+                }
+            });
+
+            assertThat(listener.errors).hasSize(1);
+            assertThat(listener.errors.get(0).queryId).isEqualTo("1");
+            assertThat(listener.batchSize).isEqualTo(1);
+            assertThat(listener.indexTime).isGreaterThan(0);
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.ParallelMatcher;
+import uk.co.flax.luwak.matchers.PartitionMatcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestMatchQuota {
+
+    static final String TEXTFIELD = "TEXTFIELD";
+
+    static final Analyzer ANALYZER = new WhitespaceAnalyzer();
+
+    private Monitor monitor;
+
+    @Before
+    public void setUp() throws IOException, UpdateException {
+        monitor = new Monitor(new LuceneQueryParser(TEXTFIELD, ANALYZER), new MatchAllPresearcher());
+        // add the queries in several updates, so that the queryindex has more than one segment
+        for (int batch = 0; batch < 5; batch++) {
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                queries.add(new MonitorQuery(Integer.toString(batch * 20 + i), "test"));
+            }
+            monitor.update(queries);
+        }
+        monitor.update(new MonitorQuery("rare", "rare"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        monitor.close();
+    }
+
+    private static InputDocument doc(String id, String text) {
+        return InputDocument.builder(id).addField(TEXTFIELD, text, ANALYZER).build();
+    }
+
+    @Test
+    public void testAnyMatchStopsCollection() throws IOException {
+        Matches<QueryMatch> matches = monitor.match(DocumentBatch.of(doc("doc1", "test")), SimpleMatcher.FACTORY, 1);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+        assertThat(matches.getQueriesRun()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFirstNMatches() throws IOException {
+        Matches<QueryMatch> matches = monitor.match(DocumentBatch.of(doc("doc1", "test")), SimpleMatcher.FACTORY, 30);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(30);
+        assertThat(matches.getQueriesRun()).isEqualTo(30);
+    }
+
+    @Test
+    public void testQuotasArePerDocument() throws IOException {
+        DocumentBatch batch = DocumentBatch.of(doc("doc1", "test"), doc("doc2", "rare"));
+        Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY, 1);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+        assertThat(matches.getMatchCount("doc2")).isEqualTo(1);
+        assertThat(matches.matches("rare", "doc2")).isNotNull();
+        // doc2 only matches the last query added, so everything must be run
+        assertThat(matches.getQueriesRun()).isEqualTo(101);
+    }
+
+    @Test
+    public void testQuotaWithUnmatchedDocuments() throws IOException {
+        DocumentBatch batch = DocumentBatch.of(doc("doc1", "test"), doc("doc2", "nothing"));
+        Matches<QueryMatch> matches = monitor.match(batch, SimpleMatcher.FACTORY, 5);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(5);
+        assertThat(matches.getMatchCount("doc2")).isEqualTo(0);
+        assertThat(matches.getQueriesRun()).isEqualTo(101);
+    }
+
+    @Test
+    public void testQuotaWithParallelMatchers() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            DocumentBatch batch = DocumentBatch.of(doc("doc1", "test"), doc("doc2", "test rare"));
+            Matches<QueryMatch> matches
+                    = monitor.match(batch, ParallelMatcher.factory(executor, SimpleMatcher.FACTORY, 4), 3);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(3);
+            assertThat(matches.getMatchCount("doc2")).isEqualTo(3);
+
+            matches = monitor.match(batch, PartitionMatcher.factory(executor, SimpleMatcher.FACTORY, 4), 3);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(3);
+            assertThat(matches.getMatchCount("doc2")).isEqualTo(3);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+}
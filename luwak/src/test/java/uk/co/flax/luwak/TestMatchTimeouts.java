@@ -0,0 +1,224 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.ParallelMatcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestMatchTimeouts {
+
+    private static final InputDocument DOC = InputDocument.builder("doc1")
+            .addField("f", "some terms to enumerate", new StandardAnalyzer()).build();
+
+    /**
+     * Parses "slow" to a query that takes 50ms before enumerating the batch's terms, and
+     * anything else to a query that matches all documents
+     */
+    static class TermEnumeratingQueryParser implements MonitorQueryParser {
+
+        final AtomicInteger slowQueriesRun = new AtomicInteger();
+
+        @Override
+        public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+            if (queryString.equals("slow") == false)
+                return new MatchAllDocsQuery();
+            return new Query() {
+                @Override
+                public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+                    slowQueriesRun.incrementAndGet();
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                        TermsEnum te = ctx.reader().terms("f").iterator();
+                        while (te.next() != null) {
+                            // enumerate all terms
+                        }
+                    }
+                    return new RandomAccessWeight(this) {
+                        @Override
+                        protected Bits getMatchingDocs(LeafReaderContext context) throws IOException {
+                            return new Bits.MatchAllBits(context.reader().maxDoc());
+                        }
+                    };
+                }
+
+                @Override
+                public String toString(String field) {
+                    return "slow";
+                }
+
+                @Override
+                public boolean equals(Object o) {
+                    return o == this;
+                }
+
+                @Override
+                public int hashCode() {
+                    return System.identityHashCode(this);
+                }
+            };
+        }
+    }
+
+    private static MatchError onlyError(Matches<?> matches) {
+        assertThat(matches.getErrors()).hasSize(1);
+        return matches.getErrors().iterator().next();
+    }
+
+    @Test
+    public void testCandidatesThatExceedTheTimeoutAreReportedAsErrors() throws IOException, UpdateException {
+
+        try (Monitor monitor = new Monitor(new TermEnumeratingQueryParser(), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"));
+
+            Matches<QueryMatch> matches = monitor.match(DOC, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(2);
+            assertThat(matches.getErrors()).isEmpty();
+
+            monitor.setMatchTimeout(10, TimeUnit.MILLISECONDS);
+            matches = monitor.match(DOC, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+            assertThat(matches.matches("2", "doc1")).isNotNull();
+
+            MatchError error = onlyError(matches);
+            assertThat(error.queryId).isEqualTo("1");
+            assertThat(error.error)
+                    .isInstanceOf(MatchTimeoutException.class)
+                    .hasMessageContaining("time budget of 10ms");
+        }
+
+    }
+
+    @Test
+    public void testBudgetedCandidatesShareASearcher() throws IOException, UpdateException {
+
+        Set<IndexSearcher> searchers = Collections.newSetFromMap(new IdentityHashMap<>());
+        MatcherFactory<QueryMatch> factory = docs -> new SimpleMatcher(docs) {
+            @Override
+            protected IndexSearcher getSearcher() throws IOException {
+                IndexSearcher searcher = super.getSearcher();
+                searchers.add(searcher);
+                return searcher;
+            }
+        };
+
+        try (Monitor monitor = new Monitor(new TermEnumeratingQueryParser(), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "fast"), new MonitorQuery("2", "fast"), new MonitorQuery("3", "fast"));
+            monitor.setMatchTimeout(10, TimeUnit.SECONDS);
+
+            Matches<QueryMatch> matches = monitor.match(DOC, factory);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(3);
+            assertThat(searchers).hasSize(1);
+        }
+
+    }
+
+    @Test
+    public void testQueriesCanSetTheirOwnTimeout() throws IOException, UpdateException {
+
+        Map<String, String> timeout = Collections.singletonMap(CandidateMatcher.MATCH_TIMEOUT_METADATA, "10");
+        Map<String, String> noTimeout = Collections.singletonMap(CandidateMatcher.MATCH_TIMEOUT_METADATA, "0");
+
+        try (Monitor monitor = new Monitor(new TermEnumeratingQueryParser(), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "slow", timeout), new MonitorQuery("2", "slow"),
+                    new MonitorQuery("3", "slow", noTimeout));
+
+            Matches<QueryMatch> matches = monitor.match(DOC, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(2);
+            assertThat(onlyError(matches).queryId).isEqualTo("1");
+
+            monitor.setMatchTimeout(10, TimeUnit.MILLISECONDS);
+            matches = monitor.match(DOC, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+            assertThat(matches.matches("3", "doc1")).isNotNull();
+        }
+
+    }
+
+    @Test
+    public void testRepeatedlySlowQueriesAreQuarantined() throws IOException, UpdateException {
+
+        TermEnumeratingQueryParser parser = new TermEnumeratingQueryParser();
+        try (Monitor monitor = new Monitor(parser, new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"));
+            monitor.setMatchTimeout(10, TimeUnit.MILLISECONDS);
+            monitor.setQuarantineThreshold(2);
+
+            monitor.match(DOC, SimpleMatcher.FACTORY);
+            monitor.match(DOC, SimpleMatcher.FACTORY);
+            assertThat(parser.slowQueriesRun.get()).isEqualTo(2);
+
+            Matches<QueryMatch> matches = monitor.match(DOC, SimpleMatcher.FACTORY);
+            assertThat(parser.slowQueriesRun.get()).isEqualTo(2);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+            assertThat(matches.getPresearcherHits()).contains("1");
+            assertThat(onlyError(matches).error)
+                    .isInstanceOf(MatchTimeoutException.class)
+                    .hasMessageContaining("quarantined");
+
+            // updating the query lifts the quarantine
+            monitor.update(new MonitorQuery("1", "slow"));
+            monitor.setMatchTimeout(0, TimeUnit.MILLISECONDS);
+            matches = monitor.match(DOC, SimpleMatcher.FACTORY);
+            assertThat(parser.slowQueriesRun.get()).isEqualTo(3);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(2);
+        }
+
+    }
+
+    @Test
+    public void testTimeoutsAreEnforcedInWorkerMatchers() throws IOException, UpdateException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (Monitor monitor = new Monitor(new TermEnumeratingQueryParser(), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"));
+            monitor.setMatchTimeout(10, TimeUnit.MILLISECONDS);
+
+            Matches<QueryMatch> matches = monitor.match(DocumentBatch.of(DOC),
+                    ParallelMatcher.factory(executor, SimpleMatcher.FACTORY, 2));
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+            assertThat(onlyError(matches).error).isInstanceOf(MatchTimeoutException.class);
+        }
+        finally {
+            executor.shutdown();
+        }
+
+    }
+
+}
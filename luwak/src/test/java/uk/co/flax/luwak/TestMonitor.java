@@ -80,6 +80,8 @@ public class TestMonitor {
         Assertions.assertThat(matches.getQueriesRun()).isEqualTo(1);
         Assertions.assertThat(matches.getQueryBuildTime()).isGreaterThan(-1);
         Assertions.assertThat(matches.getSearchTime()).isGreaterThan(-1);
+        Assertions.assertThat(matches.getQueryIndexSearchTime()).isGreaterThan(-1);
+        Assertions.assertThat(matches.getCandidateMatchTime()).isGreaterThan(0);
     }
 
     @Test
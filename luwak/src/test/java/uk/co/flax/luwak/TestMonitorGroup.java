@@ -0,0 +1,131 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestMonitorGroup {
+
+    private static final DocumentBatch BATCH = DocumentBatch.of(
+            InputDocument.builder("doc1").addField("f", "this is a test document", new StandardAnalyzer()).build(),
+            InputDocument.builder("doc2").addField("f", "another document", new StandardAnalyzer()).build()
+    );
+
+    private static Monitor newMonitor(MonitorQuery... queries) throws IOException, UpdateException {
+        return newMonitor(new TermFilteredPresearcher(), queries);
+    }
+
+    private static Monitor newMonitor(Presearcher presearcher, MonitorQuery... queries) throws IOException, UpdateException {
+        Monitor monitor = new Monitor(new LuceneQueryParser("f"), presearcher);
+        monitor.update(queries);
+        return monitor;
+    }
+
+    @Test
+    public void testMatchesAreKeyedByMonitor() throws IOException, UpdateException {
+
+        try (MonitorGroup group = new MonitorGroup(2)) {
+            group.add("tenant1", newMonitor(new MonitorQuery("1", "test")));
+            group.add("tenant2", newMonitor(new MonitorQuery("1", "document"), new MonitorQuery("2", "another")));
+            group.add("tenant3", newMonitor(new MonitorQuery("1", "missing")));
+
+            GroupMatches<QueryMatch> matches = group.match(BATCH, SimpleMatcher.FACTORY);
+
+            assertThat(matches.getFailures()).isEmpty();
+            assertThat(matches.getMatches().keySet()).containsOnly("tenant1", "tenant2", "tenant3");
+            assertThat(matches.getMatches("tenant1").getMatchCount("doc1")).isEqualTo(1);
+            assertThat(matches.getMatches("tenant1").getMatchCount("doc2")).isEqualTo(0);
+            assertThat(matches.getMatches("tenant2").getMatchCount("doc1")).isEqualTo(1);
+            assertThat(matches.getMatches("tenant2").getMatchCount("doc2")).isEqualTo(2);
+            assertThat(matches.getMatches("tenant3").getMatchCount("doc1")).isEqualTo(0);
+
+            assertThat(matches.getQueriesRun()).isEqualTo(3);
+            assertThat(matches.getBatchSize()).isEqualTo(2);
+            assertThat(matches.getBatchIndexTime()).isEqualTo(BATCH.getIndexTime());
+            assertThat(matches.getElapsedTime()).isGreaterThan(0);
+            assertThat(matches.getQueryBuildTime()).isGreaterThan(0);
+        }
+
+    }
+
+    @Test
+    public void testFailuresAreReportedPerMonitor() throws IOException, UpdateException {
+
+        Presearcher delegate = new TermFilteredPresearcher();
+        Presearcher broken = new Presearcher() {
+            @Override
+            public Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter) {
+                throw new IllegalStateException("broken presearcher");
+            }
+
+            @Override
+            public Document indexQuery(Query query, Map<String, String> metadata) {
+                return delegate.indexQuery(query, metadata);
+            }
+        };
+
+        try (MonitorGroup group = new MonitorGroup(2)) {
+            group.add("good", newMonitor(new MonitorQuery("1", "test")));
+            group.add("bad", newMonitor(broken, new MonitorQuery("1", "test")));
+
+            GroupMatches<QueryMatch> matches = group.match(BATCH, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatches("good").getMatchCount("doc1")).isEqualTo(1);
+            assertThat(matches.getMatches("bad")).isNull();
+            assertThat(matches.getFailures().get("bad")).isInstanceOf(IllegalStateException.class);
+        }
+
+    }
+
+    @Test
+    public void testMonitorIdsMustBeUnique() throws IOException, UpdateException {
+
+        try (MonitorGroup group = new MonitorGroup(1)) {
+            group.add("tenant", newMonitor());
+            Monitor duplicate = newMonitor();
+            try {
+                group.add("tenant", duplicate);
+                throw new AssertionError("Expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+            finally {
+                duplicate.close();
+            }
+
+            Monitor removed = group.remove("tenant");
+            assertThat(removed).isNotNull();
+            assertThat(group.size()).isEqualTo(0);
+            assertThat(group.match(BATCH, SimpleMatcher.FACTORY).getMatches()).isEmpty();
+            removed.close();
+        }
+
+    }
+
+}
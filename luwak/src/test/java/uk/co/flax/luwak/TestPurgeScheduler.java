@@ -0,0 +1,121 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestPurgeScheduler {
+
+    @Test
+    public void testJitterIsBounded() {
+        PurgeScheduler scheduler = new PurgeScheduler(1, 1, 0.25);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                assertThat(scheduler.nextDelay(1000)).isBetween(750L, 1250L);
+            }
+        }
+        finally {
+            scheduler.close();
+        }
+
+        PurgeScheduler noJitter = new PurgeScheduler(1, 1, 0);
+        assertThat(noJitter.nextDelay(1000)).isEqualTo(1000);
+        noJitter.close();
+    }
+
+    @Test
+    public void testConcurrentPurgesAreLimited() throws InterruptedException {
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(20);
+
+        PurgeScheduler scheduler = new PurgeScheduler(4, 2, 0.5);
+        try {
+            for (int i = 0; i < 4; i++) {
+                scheduler.schedulePurge(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(5);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    latch.countDown();
+                }, 1, TimeUnit.MILLISECONDS);
+            }
+            assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+        }
+        finally {
+            scheduler.close();
+        }
+
+        assertThat(maxRunning.get()).isBetween(1, 2);
+    }
+
+    @Test
+    public void testMonitorsCanShareAScheduler() throws IOException, InterruptedException {
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        PurgeScheduler scheduler = new PurgeScheduler(executor, 1, 0.1);
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setPurgeScheduler(scheduler)
+                .setPurgeFrequency(10, TimeUnit.MILLISECONDS);
+
+        CountDownLatch purges1 = new CountDownLatch(2);
+        CountDownLatch purges2 = new CountDownLatch(2);
+
+        try (Monitor monitor2 = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+            monitor2.addQueryIndexUpdateListener(new QueryIndexUpdateListener() {
+                @Override
+                public void onPurge() {
+                    purges2.countDown();
+                }
+            });
+
+            try (Monitor monitor1 = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+                monitor1.addQueryIndexUpdateListener(new QueryIndexUpdateListener() {
+                    @Override
+                    public void onPurge() {
+                        purges1.countDown();
+                    }
+                });
+                assertThat(purges1.await(10, TimeUnit.SECONDS)).isTrue();
+            }
+
+            // closing one monitor doesn't stop the shared scheduler
+            assertThat(executor.isShutdown()).isFalse();
+            assertThat(purges2.await(10, TimeUnit.SECONDS)).isTrue();
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+}
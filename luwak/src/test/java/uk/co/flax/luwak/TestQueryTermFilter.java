@@ -23,8 +23,10 @@ import java.util.List;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.TermQuery;
@@ -45,6 +47,8 @@ public class TestQueryTermFilter {
         );
         Document doc = new Document();
         doc.add(new StringField(FIELD, query, Field.Store.NO));
+        doc.add(new SortedDocValuesField(Monitor.FIELDS.id, new BytesRef(id)));
+        doc.add(new BinaryDocValuesField(Monitor.FIELDS.hash, e.hash));
         return ImmutableList.of(
                 new Indexable(id, e, doc)
         );
@@ -61,7 +65,57 @@ public class TestQueryTermFilter {
 
         QueryTermFilter tf = Iterables.getFirst(qi.termFilters.values(), null);
         assertThat(tf).isNotNull();
+        assertThat(tf.getTermSet(FIELD).contains(new BytesRef("term"))).isTrue();
+        assertThat(tf.getTermSet(FIELD).contains(new BytesRef("term2"))).isTrue();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testMergedTermsAreBuiltOnce() throws IOException {
+
+        QueryIndex qi = new QueryIndex();
+        qi.commit(indexable("1", "term"));
+        qi.commit(indexable("2", "term2"));
+
+        QueryTermFilter tf = Iterables.getFirst(qi.termFilters.values(), null);
         assertThat(tf.getTerms(FIELD).size()).isEqualTo(2);
+        assertThat(tf.getTerms(FIELD)).isSameAs(tf.getTerms(FIELD));
+    }
+
+    @Test
+    public void testSearchersAreReleasedAfterPurge() throws IOException {
+
+        QueryIndex qi = new QueryIndex();
+        qi.commit(indexable("1", "term"));
+
+        // purge and update while a search is holding on to the current searcher
+        qi.scan((id, query, dataValues) -> {
+            qi.purgeCache(newCache -> qi.scan((id2, query2, dataValues2) -> newCache.put(query2.hash, query2)));
+            qi.commit(indexable("2", "term2"));
+            assertThat(qi.termFilters).hasSize(2);
+        });
+
+        assertThat(qi.termFilters).hasSize(1);
+        assertThat(qi.cacheSize()).isEqualTo(2);
+    }
+
+    @Test
+    public void testSegmentTermsAreReusedAcrossRefreshes() throws IOException {
+
+        QueryIndex qi = new QueryIndex();
+        qi.commit(indexable("1", "term"));
+        assertThat(qi.leafTerms).hasSize(1);
+        QueryTermFilter.LeafTerms first = Iterables.getFirst(qi.leafTerms.values(), null);
+
+        qi.commit(indexable("2", "term2"));
+        assertThat(qi.leafTerms).hasSize(2);
+        assertThat(qi.leafTerms.values()).contains(first);
+
+        QueryTermFilter tf = Iterables.getFirst(qi.termFilters.values(), null);
+        assertThat(tf.getTermSet(FIELD).contains(new BytesRef("term"))).isTrue();
+        assertThat(tf.getTermSet(FIELD).contains(new BytesRef("term2"))).isTrue();
+        assertThat(tf.getTermSet(FIELD).contains(new BytesRef("term3"))).isFalse();
+        assertThat(tf.getTermSet("nosuchfield").contains(new BytesRef("term"))).isFalse();
     }
 
 }
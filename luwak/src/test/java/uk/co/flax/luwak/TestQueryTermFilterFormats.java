@@ -0,0 +1,159 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.co.flax.luwak.analysis.TermSet;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestQueryTermFilterFormats {
+
+    private static final String FIELD = "f";
+
+    private static final Set<String> indexed = new HashSet<>();
+    private static final Set<String> missing = new HashSet<>();
+
+    private static DirectoryReader reader;
+
+    private static String randomTerm(Random random) {
+        int length = 1 + random.nextInt(12);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            // include some non-ascii characters to check unsigned byte ordering
+            sb.append(random.nextInt(10) == 0 ? (char) ('à' + random.nextInt(20)) : (char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    @BeforeClass
+    public static void buildIndex() throws IOException {
+        Random random = new Random(42);
+        RAMDirectory directory = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()))) {
+            for (int i = 0; i < 5000; i++) {
+                String term = randomTerm(random);
+                indexed.add(term);
+                Document doc = new Document();
+                doc.add(new StringField(FIELD, term, Field.Store.NO));
+                writer.addDocument(doc);
+                if (i % 1000 == 999)
+                    writer.commit();    // create several segments
+            }
+        }
+        for (int i = 0; i < 5000; i++) {
+            String term = randomTerm(random);
+            if (indexed.contains(term) == false)
+                missing.add(term);
+        }
+        reader = DirectoryReader.open(directory);
+        assertThat(reader.leaves().size()).isGreaterThan(1);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        reader.close();
+    }
+
+    private static BytesRef bytes(String term) {
+        return new BytesRef(term.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAllFormatsContainTheSameTerms() throws IOException {
+        for (QueryTermFilter.Format format : QueryTermFilter.Format.values()) {
+            QueryTermFilter filter = new QueryTermFilter(reader, format);
+            TermSet terms = filter.getTermSet(FIELD);
+            for (String term : indexed) {
+                assertThat(terms.contains(bytes(term))).as(format + " contains " + term).isTrue();
+            }
+            for (String term : missing) {
+                assertThat(terms.contains(bytes(term))).as(format + " contains " + term).isFalse();
+            }
+            assertThat(filter.getTermSet("nosuchfield").contains(bytes("a"))).isFalse();
+        }
+    }
+
+    @Test
+    public void testSortedLookupsIntersectTheIndexTerms() throws IOException {
+        List<BytesRef> lookups = new ArrayList<>();
+        for (String term : indexed) {
+            lookups.add(bytes(term));
+        }
+        for (String term : missing) {
+            lookups.add(bytes(term));
+        }
+        Collections.sort(lookups);
+
+        TermSet terms = new QueryTermFilter(reader, QueryTermFilter.Format.TERMS_ENUM).getTermSet(FIELD);
+        for (BytesRef term : lookups) {
+            String text = term.utf8ToString();
+            assertThat(terms.contains(term)).as(text).isEqualTo(indexed.contains(text));
+        }
+        // repeated and backwards lookups seek again
+        BytesRef last = lookups.get(lookups.size() - 1);
+        assertThat(terms.contains(last)).isEqualTo(indexed.contains(last.utf8ToString()));
+        for (BytesRef term : lookups.subList(0, 100)) {
+            assertThat(terms.contains(term)).isEqualTo(indexed.contains(term.utf8ToString()));
+        }
+    }
+
+    @Test
+    public void testCompactFormatsUseLessMemory() throws IOException {
+        long hash = new QueryTermFilter(reader, QueryTermFilter.Format.HASH).ramBytesUsed();
+        long sorted = new QueryTermFilter(reader, QueryTermFilter.Format.SORTED_ARRAY).ramBytesUsed();
+        long fst = new QueryTermFilter(reader, QueryTermFilter.Format.FST).ramBytesUsed();
+        assertThat(sorted).isLessThan(hash);
+        assertThat(fst).isLessThan(hash);
+    }
+
+    @Test
+    public void testMonitorCanUseEachFormat() throws IOException, UpdateException {
+        InputDocument doc = InputDocument.builder("doc1")
+                .addField("f", "this is a test document", new StandardAnalyzer()).build();
+        for (QueryTermFilter.Format format : QueryTermFilter.Format.values()) {
+            QueryIndexConfiguration config = new QueryIndexConfiguration().setTermFilterFormat(format);
+            try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+                monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "document"),
+                        new MonitorQuery("3", "unmatched"));
+                Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+                assertThat(matches.getMatchCount("doc1")).as(format.toString()).isEqualTo(2);
+                assertThat(matches.getQueriesRun()).as(format.toString()).isEqualTo(2);
+            }
+        }
+    }
+
+}
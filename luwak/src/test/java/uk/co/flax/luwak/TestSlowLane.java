@@ -0,0 +1,201 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestSlowLane {
+
+    private static final InputDocument DOC = InputDocument.builder("doc1")
+            .addField("f", "some text", new StandardAnalyzer()).build();
+
+    // "slow" parses to a query that takes 20ms to run, and anything else to a MatchAllDocsQuery
+    private static final MonitorQueryParser PARSER = (queryString, metadata) -> {
+        if (queryString.equals("slow") == false)
+            return new MatchAllDocsQuery();
+        return new Query() {
+            @Override
+            public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return new RandomAccessWeight(this) {
+                    @Override
+                    protected Bits getMatchingDocs(LeafReaderContext context) throws IOException {
+                        return new Bits.MatchAllBits(context.reader().maxDoc());
+                    }
+                };
+            }
+
+            @Override
+            public String toString(String field) {
+                return "slow";
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o == this;
+            }
+
+            @Override
+            public int hashCode() {
+                return System.identityHashCode(this);
+            }
+        };
+    };
+
+    private ExecutorService executor;
+    private Monitor monitor;
+
+    @Before
+    public void setup() throws IOException, UpdateException {
+        executor = Executors.newSingleThreadExecutor();
+        monitor = new Monitor(PARSER, new MatchAllPresearcher());
+        monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"));
+        monitor.setSlowLane(5, TimeUnit.MILLISECONDS, executor);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        monitor.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSlowQueriesAreMovedToTheSlowLane() throws Exception {
+
+        // the slow query's cost is unknown until it has been run once
+        Matches<QueryMatch> matches = monitor.match(DOC, SimpleMatcher.FACTORY);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(2);
+        assertThat(matches.getSlowLaneMatches()).isNull();
+
+        matches = monitor.match(DOC, SimpleMatcher.FACTORY);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+        assertThat(matches.matches("2", "doc1")).isNotNull();
+        assertThat(matches.getQueriesRun()).isEqualTo(1);
+
+        Matches<QueryMatch> slowMatches = matches.getSlowLaneMatches().get();
+        assertThat(slowMatches.getMatchCount("doc1")).isEqualTo(1);
+        assertThat(slowMatches.matches("1", "doc1")).isNotNull();
+        assertThat(slowMatches.getErrors()).isEmpty();
+        assertThat(slowMatches.getQueriesRun()).isEqualTo(1);
+
+        assertThat(monitor.getSlowQueries()).containsExactly("1");
+        assertThat(monitor.getQueryCacheStats().slowQueries).containsExactly("1");
+
+    }
+
+    @Test
+    public void testSlowQueriesCanBeReleased() throws Exception {
+
+        monitor.match(DOC, SimpleMatcher.FACTORY);
+        assertThat(monitor.match(DOC, SimpleMatcher.FACTORY).getSlowLaneMatches()).isNotNull();
+
+        assertThat(monitor.releaseSlowQuery("1")).isTrue();
+        assertThat(monitor.releaseSlowQuery("1")).isFalse();
+        assertThat(monitor.getQueryCacheStats().slowQueries).isEmpty();
+
+        Matches<QueryMatch> matches = monitor.match(DOC, SimpleMatcher.FACTORY);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(2);
+        assertThat(matches.getSlowLaneMatches()).isNull();
+
+        // updating or deleting a query also moves it out of the slow lane
+        monitor.match(DOC, SimpleMatcher.FACTORY);
+        assertThat(monitor.getSlowQueries()).containsExactly("1");
+        monitor.update(new MonitorQuery("1", "slow"));
+        assertThat(monitor.getSlowQueries()).isEmpty();
+
+        // the updated query has no timings, so it is run once before moving back to the slow lane
+        monitor.match(DOC, SimpleMatcher.FACTORY);
+        monitor.match(DOC, SimpleMatcher.FACTORY);
+        assertThat(monitor.getSlowQueries()).containsExactly("1");
+        monitor.deleteById("1");
+        assertThat(monitor.getSlowQueries()).isEmpty();
+
+    }
+
+    @Test
+    public void testSlowLaneMatchesAreStreamedToMatchHandlers() throws IOException, UpdateException,
+            ExecutionException, InterruptedException {
+
+        List<String> matched = Collections.synchronizedList(new ArrayList<>());
+        monitor.match(DOC, SimpleMatcher.FACTORY);
+
+        Matches<QueryMatch> matches = monitor.match(DocumentBatch.of(DOC), SimpleMatcher.FACTORY,
+                m -> matched.add(m.getQueryId()));
+        assertThat(matched).containsExactly("2");
+
+        matches.getSlowLaneMatches().get();
+        assertThat(matched).containsExactly("2", "1");
+
+    }
+
+    @Test
+    public void testSlowLaneSharesTheMatchQuota() throws Exception {
+
+        monitor.update(new MonitorQuery("3", "slow"));
+        monitor.match(DOC, SimpleMatcher.FACTORY);
+
+        // the fast query takes one of the two places, leaving one for the slow lane
+        Matches<QueryMatch> matches = monitor.match(DocumentBatch.of(DOC), SimpleMatcher.FACTORY, 2);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+        Matches<QueryMatch> slowMatches = matches.getSlowLaneMatches().get();
+        assertThat(slowMatches.getMatchCount("doc1")).isEqualTo(1);
+
+        // the fast query fills the quota, so the slow lane isn't run
+        matches = monitor.match(DocumentBatch.of(DOC), SimpleMatcher.FACTORY, 1);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+        assertThat(matches.getSlowLaneMatches()).isNull();
+
+    }
+
+    @Test
+    public void testSlowLaneIsDisabledByDefault() throws IOException, UpdateException {
+
+        try (Monitor other = new Monitor(PARSER, new MatchAllPresearcher())) {
+            other.update(new MonitorQuery("1", "slow"));
+            other.match(DOC, SimpleMatcher.FACTORY);
+            Matches<QueryMatch> matches = other.match(DOC, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+            assertThat(matches.getSlowLaneMatches()).isNull();
+            assertThat(other.getQueryCacheStats().slowQueries).isEmpty();
+        }
+
+    }
+
+}
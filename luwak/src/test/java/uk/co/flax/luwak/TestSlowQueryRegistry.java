@@ -0,0 +1,156 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestSlowQueryRegistry {
+
+    @Test
+    public void testBucketBoundsContainTheirTimes() {
+        for (long time : new long[]{ 0, 1, 3, 4, 7, 8, 15, 16, 1000, 123456789, Long.MAX_VALUE }) {
+            int bucket = SlowQueryRegistry.bucket(time);
+            assertThat(SlowQueryRegistry.bucketLowerBound(bucket)).isLessThanOrEqualTo(time);
+            if (bucket < SlowQueryRegistry.bucket(Long.MAX_VALUE))
+                assertThat(SlowQueryRegistry.bucketLowerBound(bucket + 1)).isGreaterThan(time);
+        }
+        assertThat(SlowQueryRegistry.bucket(Long.MAX_VALUE)).isEqualTo(247);
+    }
+
+    @Test
+    public void testTimingsAreAggregatedPerQuery() {
+
+        SlowQueryRegistry registry = new SlowQueryRegistry();
+        for (int i = 1; i <= 100; i++) {
+            registry.record("q1", i * 1000);
+        }
+        registry.record("q2", 500000);
+        registry.record("q3", 2000);
+        registry.record("q3", 3000);
+
+        SlowQueryRegistry.QueryTimings q1 = registry.getTimings("q1");
+        assertThat(q1.count).isEqualTo(100);
+        assertThat(q1.totalTime).isEqualTo(5050000);
+        assertThat(q1.maxTime).isEqualTo(100000);
+        assertThat(q1.getMeanTime()).isEqualTo(50500);
+        assertThat(q1.getPercentile(50)).isBetween(50000L, 62500L);
+        assertThat(q1.getPercentile(100)).isEqualTo(100000);
+        assertThat(registry.getTimings("q4")).isNull();
+
+        SlowQueryRegistry.Snapshot snapshot = registry.snapshot(2);
+        assertThat(snapshot.queries).isEqualTo(3);
+        assertThat(snapshot.byTotalTime).extracting("queryId").containsExactly("q1", "q2");
+        assertThat(snapshot.byMaxTime).extracting("queryId").containsExactly("q2", "q1");
+        assertThat(registry.snapshot(0).byTotalTime).isEmpty();
+
+        registry.remove(Collections.singletonList("q1"));
+        assertThat(registry.snapshot(5).byTotalTime).extracting("queryId").containsExactly("q2", "q3");
+        registry.clear();
+        assertThat(registry.size()).isEqualTo(0);
+
+    }
+
+    @Test
+    public void testQueriesWithTheLowestTotalTimeAreEvicted() {
+
+        SlowQueryRegistry registry = new SlowQueryRegistry();
+        registry.setMaxQueries(10);
+        for (int i = 1; i <= 10; i++) {
+            registry.record("q" + i, i * 1000);
+        }
+        assertThat(registry.size()).isEqualTo(10);
+
+        // exceeding the limit evicts a tenth of it, lowest total time first
+        registry.record("q1", 100000);
+        registry.record("q11", 50000);
+        assertThat(registry.size()).isEqualTo(9);
+        assertThat(registry.getTimings("q2")).isNull();
+        assertThat(registry.getTimings("q3")).isNull();
+        assertThat(registry.getTimings("q1")).isNotNull();
+        assertThat(registry.getTimings("q11")).isNotNull();
+
+        registry.setMaxQueries(5);
+        assertThat(registry.size()).isEqualTo(5);
+        assertThat(registry.snapshot(5).byTotalTime).extracting("queryId")
+                .containsExactly("q1", "q11", "q10", "q9", "q8");
+
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+
+        SlowQueryRegistry registry = new SlowQueryRegistry();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        registry.record("q" + (i % 10), i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        SlowQueryRegistry.QueryTimings timings = registry.getTimings("q9");
+        assertThat(timings.count).isEqualTo(4000);
+        assertThat(timings.maxTime).isEqualTo(9999);
+        assertThat(registry.snapshot(1).byTotalTime).extracting("queryId").containsExactly("q9");
+
+    }
+
+    @Test
+    public void testMonitorRecordsSlowLogsAcrossMatches() throws IOException, UpdateException {
+
+        try (Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(50), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"));
+            monitor.setSlowLogLimit(20000000);
+            InputDocument doc = InputDocument.builder("doc1").build();
+
+            monitor.match(doc, SimpleMatcher.FACTORY);
+            monitor.match(doc, SimpleMatcher.FACTORY);
+
+            SlowQueryRegistry registry = monitor.getSlowQueryRegistry();
+            assertThat(registry.getTimings("1").count).isEqualTo(2);
+            assertThat(registry.getTimings("1").maxTime).isGreaterThanOrEqualTo(50000000);
+            assertThat(registry.getTimings("2")).isNull();
+
+            monitor.deleteById("1");
+            assertThat(registry.getTimings("1")).isNull();
+        }
+
+    }
+
+}
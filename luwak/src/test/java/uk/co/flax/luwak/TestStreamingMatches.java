@@ -0,0 +1,133 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.ParallelMatcher;
+import uk.co.flax.luwak.matchers.PartitionMatcher;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestStreamingMatches {
+
+    static final String TEXTFIELD = "TEXTFIELD";
+
+    static final Analyzer ANALYZER = new WhitespaceAnalyzer();
+
+    private static DocumentBatch batch() {
+        return DocumentBatch.of(
+                InputDocument.builder("doc1").addField(TEXTFIELD, "this is a test document", ANALYZER).build(),
+                InputDocument.builder("doc2").addField(TEXTFIELD, "another test", ANALYZER).build());
+    }
+
+    private static Monitor monitor() throws IOException, UpdateException {
+        Monitor monitor = new Monitor(new LuceneQueryParser(TEXTFIELD, ANALYZER), new MatchAllPresearcher());
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "+test " + i));
+        }
+        // decomposed into two disjuncts, both of which match doc1
+        queries.add(new MonitorQuery("decomposed", "test document"));
+        queries.add(new MonitorQuery("nomatch", "nomatch"));
+        monitor.update(queries);
+        return monitor;
+    }
+
+    @Test
+    public void testMatchesAreStreamed() throws IOException, UpdateException {
+        try (Monitor monitor = monitor()) {
+            List<QueryMatch> streamed = new ArrayList<>();
+            Matches<QueryMatch> matches = monitor.match(batch(), SimpleMatcher.FACTORY, streamed::add);
+
+            assertThat(streamed).hasSize(202);
+            assertThat(streamed).containsOnlyOnce(new QueryMatch("decomposed", "doc1"));
+            assertThat(streamed).doesNotContain(new QueryMatch("nomatch", "doc1"), new QueryMatch("nomatch", "doc2"));
+
+            // matches are not collected, but statistics are still reported
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(0);
+            assertThat(matches.getQueriesRun()).isEqualTo(103);
+            assertThat(matches.getErrors()).isEmpty();
+        }
+    }
+
+    @Test
+    public void testParallelMatchersStreamMatches() throws IOException, UpdateException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (Monitor monitor = monitor()) {
+            // the handler is called concurrently from the matcher's threads
+            List<QueryMatch> streamed = Collections.synchronizedList(new ArrayList<>());
+            monitor.match(batch(), ParallelMatcher.factory(executor, SimpleMatcher.FACTORY, 4), streamed::add);
+            assertThat(streamed).hasSize(202);
+            assertThat(streamed).containsOnlyOnce(new QueryMatch("decomposed", "doc1"));
+
+            streamed.clear();
+            monitor.match(batch(), PartitionMatcher.factory(executor, SimpleMatcher.FACTORY, 4), streamed::add);
+            assertThat(streamed).hasSize(202);
+            assertThat(streamed).containsOnlyOnce(new QueryMatch("decomposed", "doc1"));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testOnlyDecomposedQueriesAreDeduplicated() throws IOException, UpdateException {
+        try (Monitor monitor = monitor()) {
+            AtomicInteger matchingDocs = new AtomicInteger();
+            AtomicInteger matchCount = new AtomicInteger();
+            monitor.addMatchListener(new MatchListener() {
+                @Override
+                public void onMatchesFound(int matchingDocuments, int matches) {
+                    matchingDocs.set(matchingDocuments);
+                    matchCount.set(matches);
+                }
+            });
+
+            List<QueryMatch> streamed = new ArrayList<>();
+            monitor.match(batch(), SimpleMatcher.FACTORY, streamed::add);
+            assertThat(streamed).hasSize(202);
+            assertThat(matchingDocs.get()).isEqualTo(2);
+            assertThat(matchCount.get()).isEqualTo(202);
+
+            assertThat(monitor.getDisjunctCount()).isEqualTo(103);
+            List<String> decomposed = new ArrayList<>();
+            monitor.match(batch(), docs -> new SimpleMatcher(docs) {
+                @Override
+                protected void doMatchQuery(String queryId, QueryCacheEntry entry) throws IOException {
+                    if (entry.decomposed)
+                        decomposed.add(queryId);
+                    super.doMatchQuery(queryId, entry);
+                }
+            }, m -> {});
+            assertThat(decomposed).containsExactly("decomposed", "decomposed");
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package uk.co.flax.luwak.analysis;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.BytesRefIterator;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestBytesTermsEnumTokenStream {
+
+    private static BytesRefIterator terms(String... terms) {
+        return new BytesRefIterator() {
+            int upto = 0;
+            final BytesRef scratch = new BytesRef();
+
+            @Override
+            public BytesRef next() {
+                if (upto >= terms.length)
+                    return null;
+                BytesRef term = new BytesRef(terms[upto++]);
+                scratch.bytes = term.bytes;
+                scratch.offset = term.offset;
+                scratch.length = term.length;
+                return scratch;
+            }
+        };
+    }
+
+    @Test
+    public void testTermsAreExposedAsBytes() throws IOException {
+        try (TokenStream ts = new BytesTermsEnumTokenStream(terms("bar", "foo", "été"))) {
+            TermToBytesRefAttribute bytesAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+            assertThat(ts.hasAttribute(CharTermAttribute.class)).isFalse();
+            ts.reset();
+            assertThat(ts.incrementToken()).isTrue();
+            assertThat(bytesAtt.getBytesRef().utf8ToString()).isEqualTo("bar");
+            assertThat(ts.incrementToken()).isTrue();
+            assertThat(bytesAtt.getBytesRef().utf8ToString()).isEqualTo("foo");
+            assertThat(ts.incrementToken()).isTrue();
+            assertThat(bytesAtt.getBytesRef().utf8ToString()).isEqualTo("été");
+            assertThat(ts.incrementToken()).isFalse();
+            ts.end();
+        }
+    }
+
+    @Test
+    public void testBytesCanBeFiltered() throws IOException {
+        BytesRefHash allowed = new BytesRefHash();
+        allowed.add(new BytesRef("foo"));
+        try (TokenStream ts = new BytesRefFilteredTokenFilter(new BytesTermsEnumTokenStream(terms("bar", "foo", "quux")),
+                TermSet.of(allowed))) {
+            TermToBytesRefAttribute bytesAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+            ts.reset();
+            assertThat(ts.incrementToken()).isTrue();
+            assertThat(bytesAtt.getBytesRef().utf8ToString()).isEqualTo("foo");
+            assertThat(ts.incrementToken()).isFalse();
+            ts.end();
+        }
+    }
+
+}
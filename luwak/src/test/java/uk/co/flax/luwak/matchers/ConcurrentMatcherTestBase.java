@@ -107,6 +107,8 @@ public abstract class ConcurrentMatcherTestBase {
             Matches<QueryMatch> matches = monitor.match(batch, factory);
             assertThat(matches.getMatchCount("doc1"))
                     .isEqualTo(3);
+            // the two slow queries are run in worker matchers, and their time should be reported
+            assertThat(matches.getCandidateMatchTime()).isGreaterThan(400000000L);
             assertThat(matches.getSlowLog().toString())
                 .contains("1 [")
                 .contains("3 [")
@@ -1,9 +1,17 @@
 package uk.co.flax.luwak.matchers;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import uk.co.flax.luwak.MatcherFactory;
-import uk.co.flax.luwak.QueryMatch;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
 
 /**
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -27,4 +35,37 @@ public class TestPartitionMatcher extends ConcurrentMatcherTestBase {
     protected <T extends QueryMatch> MatcherFactory<T> matcherFactory(ExecutorService executor, MatcherFactory<T> factory, int threads) {
         return PartitionMatcher.factory(executor, factory, threads);
     }
+
+    @Test
+    public void testWorkerMatchersRecordCandidateCosts() throws IOException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (DocumentBatch batch = DocumentBatch.of(InputDocument.builder("doc")
+                .addField("field", "test", ANALYZER).build())) {
+
+            QueryCacheEntry entry = new QueryCacheEntry(new BytesRef("1"),
+                    new TermQuery(new Term("field", "test")), Collections.emptyMap());
+            CandidateMatcher<QueryMatch> matcher
+                    = PartitionMatcher.factory(executor, SimpleMatcher.FACTORY, 2).createMatcher(batch);
+
+            matcher.matchQuery("1", entry);
+            assertThat(entry.getCost()).isEqualTo(-1);
+
+            matcher.finish(0, 1);
+            assertThat(entry.getCost()).isGreaterThanOrEqualTo(0);
+            assertThat(matcher.getMatches().getMatchCount("doc")).isEqualTo(1);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCostEstimatesAreMovingAverages() {
+        QueryCacheEntry entry = new QueryCacheEntry(new BytesRef("1"), new TermQuery(new Term("f", "t")), Collections.emptyMap());
+        entry.recordCost(100);
+        assertThat(entry.getCost()).isEqualTo(100);
+        entry.recordCost(500);
+        assertThat(entry.getCost()).isEqualTo(200);
+    }
 }
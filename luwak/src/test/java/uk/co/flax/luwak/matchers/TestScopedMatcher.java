@@ -0,0 +1,129 @@
+package uk.co.flax.luwak.matchers;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestScopedMatcher extends ConcurrentMatcherTestBase {
+
+    @Override
+    protected <T extends QueryMatch> MatcherFactory<T> matcherFactory(ExecutorService executor, MatcherFactory<T> factory, int threads) {
+        return ScopedMatcher.factory(executor, factory, 4, 0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testEachCandidateRunsInItsOwnTask() throws IOException, UpdateException {
+
+        // a thread-per-task executor, as a virtual thread executor would be
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        try (Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(250), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "slow"),
+                    new MonitorQuery("3", "slow"), new MonitorQuery("4", "slow"));
+
+            DocumentBatch batch = DocumentBatch.of(InputDocument.builder("doc1").build());
+
+            long start = System.nanoTime();
+            Matches<QueryMatch> matches = monitor.match(batch, ScopedMatcher.factory(executor, SimpleMatcher.FACTORY));
+            long elapsed = System.nanoTime() - start;
+
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(4);
+            assertThat(elapsed).isLessThan(900000000L);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnfinishedCandidatesAreCancelledAtTheTimeout() throws IOException, UpdateException {
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        try (Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(2000), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"));
+
+            DocumentBatch batch = DocumentBatch.of(InputDocument.builder("doc1").build());
+
+            long start = System.nanoTime();
+            Matches<QueryMatch> matches = monitor.match(batch,
+                    ScopedMatcher.factory(executor, SimpleMatcher.FACTORY, 1, 200, TimeUnit.MILLISECONDS));
+            long elapsed = System.nanoTime() - start;
+
+            assertThat(elapsed).isLessThan(1000000000L);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+            assertThat(matches.matches("2", "doc1")).isNotNull();
+            assertThat(matches.getErrors()).hasSize(1);
+            MatchError error = matches.getErrors().iterator().next();
+            assertThat(error.queryId).isEqualTo("1");
+            assertThat(error.error).isInstanceOf(TimeoutException.class);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCancelledTasksHaveFinishedWhenTheMatchReturns() throws IOException, UpdateException {
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        AtomicInteger running = new AtomicInteger();
+        // a matcher that ignores interruption
+        MatcherFactory<QueryMatch> stubborn = docs -> new SimpleMatcher(docs) {
+            @Override
+            protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+                running.incrementAndGet();
+                try {
+                    Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+                    super.doMatchQuery(queryId, matchQuery, metadata);
+                }
+                finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+
+        try (Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(0), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "fast"), new MonitorQuery("2", "fast"));
+
+            try (DocumentBatch batch = DocumentBatch.of(InputDocument.builder("doc1").build())) {
+                Matches<QueryMatch> matches = monitor.match(batch,
+                        ScopedMatcher.factory(executor, stubborn, 1, 50, TimeUnit.MILLISECONDS));
+                assertThat(running.get()).isEqualTo(0);
+                assertThat(matches.getErrors()).hasSize(2);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package uk.co.flax.luwak.matchers;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestWorkStealingMatcher extends ConcurrentMatcherTestBase {
+
+    @Override
+    protected <T extends QueryMatch> MatcherFactory<T> matcherFactory(ExecutorService executor, MatcherFactory<T> factory, int threads) {
+        return WorkStealingMatcher.factory(new ForkJoinPool(threads), factory);
+    }
+
+    @Test
+    public void testSlowQueriesInASingleChunkAreStolen() throws IOException, UpdateException {
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try (Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(250), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "slow"),
+                    new MonitorQuery("3", "slow"), new MonitorQuery("4", "slow"));
+
+            DocumentBatch batch = DocumentBatch.of(InputDocument.builder("doc1").build());
+
+            // all four candidates fit into the first chunk, so they can only run in parallel
+            // if the chunk is split between the pool's threads
+            long start = System.nanoTime();
+            Matches<QueryMatch> matches = monitor.match(batch, WorkStealingMatcher.factory(pool, SimpleMatcher.FACTORY));
+            long elapsed = System.nanoTime() - start;
+
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(4);
+            assertThat(matches.getCandidateMatchTime()).isGreaterThan(900000000L);
+            assertThat(elapsed).isLessThan(900000000L);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testChunkSizesAreValidated() {
+        try {
+            new WorkStealingMatcher<>(DocumentBatch.of(InputDocument.builder("doc1").build()),
+                    ForkJoinPool.commonPool(), SimpleMatcher.FACTORY, 16, 8);
+            fail("Expected an IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("minChunkSize");
+        }
+    }
+
+}
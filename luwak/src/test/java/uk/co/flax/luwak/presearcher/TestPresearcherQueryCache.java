@@ -0,0 +1,113 @@
+package uk.co.flax.luwak.presearcher;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestPresearcherQueryCache {
+
+    private static DocumentBatch newBatch() {
+        return DocumentBatch.of(
+                InputDocument.builder("doc1").addField("f", "well hello there", new WhitespaceAnalyzer()).build(),
+                InputDocument.builder("doc2").addField("f", "goodbye world", new WhitespaceAnalyzer()).build()
+        );
+    }
+
+    @Test
+    public void testBatchTermsAreSharedBetweenMonitors() throws IOException, UpdateException {
+
+        PresearcherQueryCache cache = new PresearcherQueryCache();
+        TermFilteredPresearcher presearcher
+                = new TermFilteredPresearcher(new WildcardNGramPresearcherComponent()).setQueryCache(cache);
+
+        try (Monitor monitor1 = new Monitor(new LuceneQueryParser("f"), presearcher);
+             Monitor monitor2 = new Monitor(new LuceneQueryParser("f"), presearcher);
+             DocumentBatch batch = newBatch()) {
+
+            monitor1.update(new MonitorQuery("1", "/hell.*/"), new MonitorQuery("2", "world"));
+            monitor2.update(new MonitorQuery("3", "goodbye"), new MonitorQuery("4", "missing"));
+
+            Matches<QueryMatch> matches1 = monitor1.match(batch, SimpleMatcher.FACTORY);
+            Matches<QueryMatch> matches2 = monitor2.match(batch, SimpleMatcher.FACTORY);
+
+            assertThat(matches1.matches("1", "doc1")).isNotNull();
+            assertThat(matches1.matches("2", "doc2")).isNotNull();
+            assertThat(matches2.matches("3", "doc2")).isNotNull();
+            assertThat(matches2.getQueriesRun()).isEqualTo(1);
+
+            assertThat(cache.getMisses()).isEqualTo(1);
+            assertThat(cache.getHits()).isEqualTo(1);
+            assertThat(cache.size()).isEqualTo(1);
+
+            batch.close();
+            assertThat(cache.size()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testCachedQueriesAreTheSameAsUncachedQueries() throws IOException, UpdateException {
+
+        TermFilteredPresearcher uncached = new TermFilteredPresearcher(new WildcardNGramPresearcherComponent());
+        TermFilteredPresearcher cached = new TermFilteredPresearcher(new WildcardNGramPresearcherComponent())
+                .setQueryCache(new PresearcherQueryCache());
+
+        IndexWriter writer = new IndexWriter(new RAMDirectory(), new IndexWriterConfig(new WhitespaceAnalyzer()));
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), uncached, writer)) {
+            monitor.update(new MonitorQuery("1", "/hell.*/"), new MonitorQuery("2", "world"), new MonitorQuery("3", "there"));
+
+            try (IndexReader reader = DirectoryReader.open(writer, false, false);
+                 DocumentBatch batch = newBatch()) {
+                QueryTermFilter termFilter = new QueryTermFilter(reader);
+                assertThat(cached.buildQuery(batch.getIndexReader(), termFilter))
+                        .isEqualTo(uncached.buildQuery(batch.getIndexReader(), termFilter));
+                // and again from the cache
+                assertThat(cached.buildQuery(batch.getIndexReader(), termFilter))
+                        .isEqualTo(uncached.buildQuery(batch.getIndexReader(), termFilter));
+                assertThat(cached.getQueryCache().getHits()).isEqualTo(1);
+            }
+        }
+    }
+
+    @Test
+    public void testPresearchersWithoutTokenFiltersDoNotUseTheCache() throws IOException, UpdateException {
+
+        PresearcherQueryCache cache = new PresearcherQueryCache();
+        TermFilteredPresearcher presearcher = new TermFilteredPresearcher().setQueryCache(cache);
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), presearcher);
+             DocumentBatch batch = newBatch()) {
+            monitor.update(new MonitorQuery("1", "hello"));
+            assertThat(monitor.match(batch, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(1);
+            assertThat(cache.getMisses()).isEqualTo(0);
+            assertThat(cache.size()).isEqualTo(0);
+        }
+    }
+
+}
@@ -6,12 +6,14 @@ import java.util.Map;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.*;
-import org.apache.lucene.queries.TermsQuery;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermInSetQuery;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
@@ -121,7 +123,46 @@ public class TestTermPresearcher extends PresearcherTestBase {
 
                 BooleanQuery q = (BooleanQuery) presearcher.buildQuery(batch.getIndexReader(), new QueryTermFilter(reader));
                 BooleanQuery expected = new BooleanQuery.Builder()
-                        .add(should(new TermsQuery(new Term("f", "test"))))
+                        .add(should(new TermInSetQuery("f", new BytesRef("test"))))
+                        .add(should(new TermQuery(new Term("__anytokenfield", "__ANYTOKEN__"))))
+                        .build();
+
+                Assertions.assertThat(q).isEqualTo(expected);
+
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testQueryBuilderWithMultipleFields() throws IOException, UpdateException {
+
+        IndexWriterConfig iwc = new IndexWriterConfig(new KeywordAnalyzer());
+        Presearcher presearcher = createPresearcher();
+
+        Directory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, iwc);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), presearcher, writer)) {
+
+            monitor.update(new MonitorQuery("1", "f:test"), new MonitorQuery("2", "g:document g:unseen"));
+
+            try (IndexReader reader = DirectoryReader.open(writer, false, false)) {
+
+                DocumentBatch batch = DocumentBatch.of(
+                        InputDocument.builder("doc1")
+                                .addField("f", "this is a test document", new StandardAnalyzer())
+                                .addField("g", "this is another document", new StandardAnalyzer())
+                                .build()
+                );
+
+                BooleanQuery q = (BooleanQuery) presearcher.buildQuery(batch.getIndexReader(), new QueryTermFilter(reader));
+                BooleanQuery expected = new BooleanQuery.Builder()
+                        .add(should(new ConstantScoreQuery(new BooleanQuery.Builder()
+                                .setDisableCoord(true)
+                                .add(should(new TermInSetQuery("f", new BytesRef("test"))))
+                                .add(should(new TermInSetQuery("g", new BytesRef("document"))))
+                                .build())))
                         .add(should(new TermQuery(new Term("__anytokenfield", "__ANYTOKEN__"))))
                         .build();
 
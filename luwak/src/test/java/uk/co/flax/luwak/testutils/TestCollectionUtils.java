@@ -1,5 +1,6 @@
 package uk.co.flax.luwak.testutils;
 
+import java.util.Arrays;
 import java.util.List;
 
 import com.google.common.collect.ImmutableList;
@@ -46,6 +47,37 @@ public class TestCollectionUtils {
 
     }
 
+    @Test
+    public void testPartitionByCostBalancesTotalCost() {
+        List<String> items = Arrays.asList("a", "b", "c", "d", "e", "f");
+        long[] costs = new long[]{ 10, 1, 1, 1, 1, 6 };
+
+        // partitioning by count would give slices costing 12 and 8
+        List<List<String>> slices = CollectionUtils.partitionByCost(items, costs, 2);
+        assertThat(slices).hasSize(2);
+        assertThat(slices.get(0)).containsExactly("a");
+        assertThat(slices.get(1)).containsExactly("f", "b", "c", "d", "e");
+    }
+
+    @Test
+    public void testPartitionByCostWithEqualCostsDealsItemsOut() {
+        List<String> items = Arrays.asList("a", "b", "c", "d", "e");
+        List<List<String>> slices = CollectionUtils.partitionByCost(items, new long[]{ 1, 1, 1, 1, 1 }, 3);
+        assertThat(slices.get(0)).containsExactly("a", "d");
+        assertThat(slices.get(1)).containsExactly("b", "e");
+        assertThat(slices.get(2)).containsExactly("c");
+    }
+
+    @Test
+    public void testPartitionByCostWithMoreSlicesThanItems() {
+        List<List<String>> slices = CollectionUtils.partitionByCost(Arrays.asList("a", "b"), new long[]{ 1, 5 }, 4);
+        assertThat(slices).hasSize(4);
+        assertThat(slices.get(0)).containsExactly("b");
+        assertThat(slices.get(1)).containsExactly("a");
+        assertThat(slices.get(2)).isEmpty();
+        assertThat(slices.get(3)).isEmpty();
+    }
+
     public static List<String> list(String... terms) {
         return ImmutableList.copyOf(terms);
     }
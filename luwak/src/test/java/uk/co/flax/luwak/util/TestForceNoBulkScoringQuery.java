@@ -53,6 +53,13 @@ public class TestForceNoBulkScoringQuery {
                 .isEqualTo(new ForceNoBulkScoringQuery(tq3).hashCode());
         assertThat(new ForceNoBulkScoringQuery(tq1).hashCode())
                 .isNotEqualTo(new ForceNoBulkScoringQuery(tq2).hashCode());
+
+        // a pre-rewritten query rewrites differently, so is not interchangeable
+        assertThat(new ForceNoBulkScoringQuery(tq1, true))
+                .isNotEqualTo(new ForceNoBulkScoringQuery(tq1))
+                .isEqualTo(new ForceNoBulkScoringQuery(tq1, true));
+        assertThat(new ForceNoBulkScoringQuery(tq1, true).hashCode())
+                .isNotEqualTo(new ForceNoBulkScoringQuery(tq1).hashCode());
     }
 
     @Test
@@ -0,0 +1,108 @@
+package uk.co.flax.luwak.util;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.junit.Test;
+import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.InputDocument;
+import uk.co.flax.luwak.QueryCacheEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestReaderIndependentRewriter {
+
+    private static Query tq(String term) {
+        return new TermQuery(new Term("f", term));
+    }
+
+    @Test
+    public void testTermQueriesAreFullyRewritten() throws IOException {
+
+        BooleanQuery single = new BooleanQuery.Builder().add(tq("a"), BooleanClause.Occur.MUST).build();
+        assertThat(ReaderIndependentRewriter.INSTANCE.rewrite(single)).isEqualTo(tq("a"));
+
+        Query phrase = new PhraseQuery("f", "b");
+        assertThat(ReaderIndependentRewriter.INSTANCE.rewrite(phrase)).isEqualTo(tq("b"));
+
+        BooleanQuery bq = new BooleanQuery.Builder()
+                .add(tq("a"), BooleanClause.Occur.SHOULD)
+                .add(new BoostQuery(new PhraseQuery("f", "b", "c"), 2), BooleanClause.Occur.SHOULD)
+                .build();
+        assertThat(ReaderIndependentRewriter.INSTANCE.rewrite(bq)).isSameAs(bq);
+
+        SpanQuery near = new SpanNearQuery(new SpanQuery[]{
+                new SpanTermQuery(new Term("f", "a")), new SpanTermQuery(new Term("f", "b"))}, 1, true);
+        assertThat(ReaderIndependentRewriter.INSTANCE.rewrite(near)).isSameAs(near);
+
+    }
+
+    @Test
+    public void testReaderDependentQueriesAreNotRewritten() throws IOException {
+
+        Query prefix = new PrefixQuery(new Term("f", "te"));
+        assertThat(ReaderIndependentRewriter.INSTANCE.rewrite(prefix)).isNull();
+
+        BooleanQuery bq = new BooleanQuery.Builder()
+                .add(tq("a"), BooleanClause.Occur.SHOULD)
+                .add(new DisjunctionMaxQuery(Collections.singletonList(prefix), 0), BooleanClause.Occur.SHOULD)
+                .build();
+        assertThat(ReaderIndependentRewriter.INSTANCE.rewrite(bq)).isNull();
+
+        SpanQuery near = new SpanNearQuery(new SpanQuery[]{
+                new SpanTermQuery(new Term("f", "a")), new SpanMultiTermQueryWrapper<>(new WildcardQuery(new Term("f", "t*")))}, 1, true);
+        assertThat(ReaderIndependentRewriter.INSTANCE.rewrite(near)).isNull();
+
+    }
+
+    @Test
+    public void testPreparedQueriesAreReusedAcrossBatches() throws IOException {
+
+        QueryCacheEntry terms = new QueryCacheEntry(null, new PhraseQuery("f", "term"), Collections.emptyMap());
+        QueryCacheEntry prefix = new QueryCacheEntry(null, new PrefixQuery(new Term("f", "te")), Collections.emptyMap());
+
+        Query prepared = terms.getPreparedQuery();
+        assertThat(prepared).isSameAs(terms.getPreparedQuery());
+        assertThat(((ForceNoBulkScoringQuery) prepared).getWrappedQuery()).isEqualTo(tq("term"));
+
+        for (String text : new String[]{ "a term", "test terms" }) {
+            InputDocument doc = InputDocument.builder("doc").addField("f", text, new StandardAnalyzer()).build();
+            try (DocumentBatch batch = DocumentBatch.of(doc)) {
+                IndexSearcher searcher = batch.getSearcher();
+                assertThat(searcher.rewrite(prepared)).isSameAs(prepared);
+                assertThat(searcher.rewrite(prefix.getPreparedQuery())).isNotSameAs(prefix.getPreparedQuery());
+                assertThat(searcher.count(prefix.getPreparedQuery())).isEqualTo(1);
+            }
+        }
+
+        InputDocument doc = InputDocument.builder("doc").addField("f", "a term", new StandardAnalyzer()).build();
+        try (DocumentBatch batch = DocumentBatch.of(doc)) {
+            assertThat(batch.getSearcher().count(prepared)).isEqualTo(1);
+        }
+
+    }
+
+}